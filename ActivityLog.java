@@ -0,0 +1,69 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Lock-free bounded ring of activity lines. Any number of network threads
+ * publish into it without touching Swing or blocking one another; a single
+ * consumer (the UI's repaint timer) drains it in batches. When the consumer
+ * falls a whole ring behind, new lines are dropped and counted rather than
+ * letting memory grow.
+ */
+public class ActivityLog {
+
+    private final AtomicReferenceArray<String> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // next sequence a producer claims
+    private volatile long head; // next sequence the consumer reads; only the consumer writes it
+    private final LongAdder dropped = new LongAdder();
+
+    /** capacity is rounded up to a power of two. */
+    public ActivityLog(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    // Safe from any thread; returns false if the line was dropped because the ring is full
+    public boolean publish(String line) {
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head >= slots.length()) {
+                dropped.increment();
+                return false;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+        slots.lazySet((int) (sequence & mask), line);
+        return true;
+    }
+
+    /**
+     * Hands up to max published lines to the sink, oldest first; returns how many.
+     * Only one thread may drain. A line whose producer has claimed its slot but not
+     * yet filled it ends the batch, and is picked up by the next drain.
+     */
+    public int drain(Consumer<String> sink, int max) {
+        long next = head;
+        int count = 0;
+        while (count < max) {
+            int index = (int) (next & mask);
+            String line = slots.get(index);
+            if (line == null) {
+                break;
+            }
+            slots.lazySet(index, null);
+            sink.accept(line);
+            next++;
+            count++;
+        }
+        head = next;
+        return count;
+    }
+
+    // Lines dropped since the last call
+    public long takeDropped() {
+        return dropped.sumThenReset();
+    }
+}
@@ -5,7 +5,9 @@ import java.io.*;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
 import javax.swing.*;
 import javax.swing.border.*;
@@ -45,6 +47,7 @@ public class AdvancedClient extends JFrame {
     private String serverAddress = "localhost";
     private int serverPort = 12345;
     private String username = "Anonymous";
+    private long presenceVersion = -1; // last user list version applied; -1 until a snapshot arrives
 
     // Modern Dark Theme Color Scheme (from ModernUI.ThemeColors)
     private final Color PRIMARY_COLOR = ModernUI.ThemeColors.PRIMARY;
@@ -1360,7 +1363,9 @@ public class AdvancedClient extends JFrame {
             output = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
             isConnected = true;
 
-            // Send username first
+            // Ask for numbered user list deltas, typing sets and epoch times, then send the username
+            presenceVersion = -1;
+            output.println("PROTO|1|delta,typing,epoch");
             output.println("USERNAME|" + username);
 
             SwingUtilities.invokeLater(() -> {
@@ -1503,7 +1508,7 @@ public class AdvancedClient extends JFrame {
             try {
                 String[] head = message.split("\\|", 2);
                 String messageType = head[0];
-                String rest = head.length == 2 ? head[1] : "";
+                String rest = localizeTimestamp(head.length == 2 ? head[1] : "");
 
                 switch (messageType) {
                     case "PING" -> {
@@ -1562,14 +1567,71 @@ public class AdvancedClient extends JFrame {
                         };
                         appendDiscordMessage("System", displayText, timestamp, "system");
                     }
+                    case "PROTO" -> {
+                        // Handshake reply: PROTO|version[|features]
+                    }
                     case "USERLIST" -> {
-                        // USERLIST|ts|user1,user2,...
+                        // USERLIST|ts|user1,user2,... (servers without delta support)
                         String[] p = rest.split("\\|", 2);
                         String content = p.length == 2 ? p[1] : "";
                         updateUserList(content);
                     }
+                    case "PRESENCE" -> {
+                        // PRESENCE|ts|version|user1,user2,...: full list, sent once on join
+                        String[] p = rest.split("\\|", 3);
+                        if (p.length < 2) {
+                            return;
+                        }
+                        presenceVersion = Long.parseLong(p[1]);
+                        updateUserList(p.length == 3 ? p[2] : "");
+                    }
+                    case "USER_ADD", "USER_REMOVE" -> {
+                        // USER_ADD|ts|version|name1,name2,...
+                        String[] p = rest.split("\\|", 3);
+                        if (p.length < 3) {
+                            return;
+                        }
+                        applyUserDelta(messageType.equals("USER_ADD"), Long.parseLong(p[1]), p[2]);
+                    }
+                    case "NICK" -> {
+                        // NICK|ts|oldName|newName: a rename, or our requested name was taken
+                        String[] p = rest.split("\\|", 3);
+                        if (p.length < 3) {
+                            return;
+                        }
+                        if (p[1].equals(username)) {
+                            username = p[2];
+                            setTitle("💬 Elite Chat - " + username);
+                            appendDiscordMessage("System", "You are now known as " + username, p[0], "system");
+                        } else {
+                            appendDiscordMessage("System", p[1] + " is now known as " + p[2], p[0], "system");
+                        }
+                    }
+                    case "TYPING_SET" -> {
+                        // TYPING_SET|ts|user1,user2,...: everyone else typing right now
+                        String[] p = rest.split("\\|", 2);
+                        List<String> typists = new ArrayList<>();
+                        if (p.length == 2) {
+                            for (String who : p[1].split(",")) {
+                                if (!who.isEmpty() && !who.equals(username)) {
+                                    typists.add(who);
+                                }
+                            }
+                        }
+                        String text = switch (typists.size()) {
+                            case 0 ->
+                                "";
+                            case 1 ->
+                                typists.get(0) + " is typing";
+                            case 2 ->
+                                typists.get(0) + " and " + typists.get(1) + " are typing";
+                            default ->
+                                "Several people are typing";
+                        };
+                        setTypingIndicator(text, !typists.isEmpty());
+                    }
                     case "TYPING" -> {
-                        // TYPING|ts|username|true/false
+                        // TYPING|ts|username|true/false (servers without typing sets)
                         String[] p = rest.split("\\|", 3);
                         if (p.length < 3) {
                             return;
@@ -1590,16 +1652,24 @@ public class AdvancedClient extends JFrame {
         });
     }
 
+    // Brings the list model in line with a full list, touching only the entries that changed
     private void updateUserList(String userListStr) {
-        userListModel.clear();
+        Set<String> users = new LinkedHashSet<>();
         if (userListStr != null && !userListStr.trim().isEmpty()) {
-            String[] users = userListStr.split(",");
-            for (String user : users) {
+            for (String user : userListStr.split(",")) {
                 if (!user.trim().isEmpty()) {
-                    userListModel.addElement(user.trim());
+                    users.add(user.trim());
                 }
             }
         }
+        for (int i = userListModel.size() - 1; i >= 0; i--) {
+            if (!users.remove(userListModel.get(i))) {
+                userListModel.remove(i);
+            }
+        }
+        for (String user : users) {
+            userListModel.addElement(user);
+        }
 
         // Update user count
         userCountLabel.setText("👥 " + userListModel.size());
@@ -1608,6 +1678,33 @@ public class AdvancedClient extends JFrame {
         // (No longer using ModernTitledBorder)
     }
 
+    // Applies one numbered presence change, which may cover several users. Stale versions are
+    // ignored; a gap means a delta was lost, so ask for a fresh snapshot and ignore deltas until
+    // it arrives.
+    private void applyUserDelta(boolean added, long version, String users) {
+        if (presenceVersion < 0 || version <= presenceVersion) {
+            return;
+        }
+        if (version > presenceVersion + 1) {
+            presenceVersion = -1;
+            if (output != null) {
+                output.println("PRESENCE");
+            }
+            return;
+        }
+        presenceVersion = version;
+        for (String user : users.split(",")) {
+            if (added) {
+                if (!userListModel.contains(user)) {
+                    userListModel.addElement(user);
+                }
+            } else {
+                userListModel.removeElement(user);
+            }
+        }
+        userCountLabel.setText("👥 " + userListModel.size());
+    }
+
     private void appendDiscordMessage(String sender, String content, String timestamp, String messageType) {
         SwingUtilities.invokeLater(() -> {
             // Check if we should group with previous message (same sender, within short time)
@@ -1654,6 +1751,25 @@ public class AdvancedClient extends JFrame {
         scrollTimer.start();
     }
 
+    // With the "epoch" feature a message's time field is epoch milliseconds: show it in local time
+    private static String localizeTimestamp(String rest) {
+        int end = rest.indexOf('|');
+        if (end < 0) {
+            end = rest.length();
+        }
+        if (end < 10) {
+            return rest;
+        }
+        for (int i = 0; i < end; i++) {
+            if (!Character.isDigit(rest.charAt(i))) {
+                return rest;
+            }
+        }
+        java.time.LocalTime time = java.time.LocalTime.ofInstant(
+                java.time.Instant.ofEpochMilli(Long.parseLong(rest.substring(0, end))), java.time.ZoneId.systemDefault());
+        return String.format("%02d:%02d", time.getHour(), time.getMinute()) + rest.substring(end);
+    }
+
     private String getCurrentTime() {
         java.time.LocalTime now = java.time.LocalTime.now();
         return String.format("%02d:%02d", now.getHour(), now.getMinute());
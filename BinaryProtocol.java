@@ -0,0 +1,150 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wire format for protocol version 2, negotiated by sending PROTO|2 as the
+ * first line. The server answers with a text PROTO line carrying the version
+ * it accepted; after that line both directions switch to binary frames:
+ *
+ *   u8 opcode | u32 payload length | payload
+ *
+ * The payload is a sequence of fields, each a u16 byte length followed by that
+ * many UTF-8 bytes, so content may contain '|' and newlines. Message types and
+ * field order are the same as in the text protocol (CHAT carries ts, user,
+ * message). The one exception is a client's CHAT frame, whose single field is
+ * the raw input line: chat text or a slash command.
+ */
+public final class BinaryProtocol {
+
+    public static final int VERSION = 2;
+    public static final int HEADER_BYTES = 5;
+    public static final int MAX_FRAME_BYTES = 64 * 1024; // header included
+
+    // Index is the opcode; 0 is reserved
+    private static final String[] TYPES = {
+        null, "PROTO", "USERNAME", "CHAT", "PRIVATE", "JOIN", "LEAVE", "SYSTEM", "TYPING", "USERLIST", "PING", "PONG", "NICK",
+        "PRESENCE", "USER_ADD", "USER_REMOVE", "TYPING_SET"
+    };
+    private static final Map<String, Integer> OPCODES = new HashMap<>();
+    private static final int CHAT = 3;
+
+    static {
+        for (int i = 1; i < TYPES.length; i++) {
+            OPCODES.put(TYPES[i], i);
+        }
+    }
+
+    private BinaryProtocol() {
+    }
+
+    public static byte[] encode(String type, String... fields) {
+        Integer opcode = OPCODES.get(type);
+        if (opcode == null) {
+            throw new IllegalArgumentException("No opcode for message type " + type);
+        }
+        byte[][] encoded = new byte[fields.length][];
+        int payloadLength = 0;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fieldBytes(fields[i]);
+            payloadLength += 2 + encoded[i].length;
+        }
+
+        byte[] frame = new byte[HEADER_BYTES + payloadLength];
+        frame[0] = (byte) (int) opcode;
+        frame[1] = (byte) (payloadLength >>> 24);
+        frame[2] = (byte) (payloadLength >>> 16);
+        frame[3] = (byte) (payloadLength >>> 8);
+        frame[4] = (byte) payloadLength;
+        int pos = HEADER_BYTES;
+        for (byte[] field : encoded) {
+            frame[pos++] = (byte) (field.length >>> 8);
+            frame[pos++] = (byte) field.length;
+            System.arraycopy(field, 0, frame, pos, field.length);
+            pos += field.length;
+        }
+        return frame;
+    }
+
+    // UTF-8 bytes of the field, cut back to a character boundary if over the u16 limit
+    private static byte[] fieldBytes(String field) {
+        byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= 0xFFFF) {
+            return bytes;
+        }
+        int end = 0xFFFF;
+        while (end > 0 && (bytes[end] & 0xC0) == 0x80) {
+            end--;
+        }
+        byte[] cut = new byte[end];
+        System.arraycopy(bytes, 0, cut, 0, end);
+        return cut;
+    }
+
+    // Size of the frame starting at offset (header included), read from its header
+    public static int frameLength(byte[] buf, int offset) throws IOException {
+        int payloadLength = ((buf[offset + 1] & 0xFF) << 24) | ((buf[offset + 2] & 0xFF) << 16)
+                | ((buf[offset + 3] & 0xFF) << 8) | (buf[offset + 4] & 0xFF);
+        if (payloadLength < 0 || payloadLength > MAX_FRAME_BYTES - HEADER_BYTES) {
+            throw new IOException("frame exceeds " + MAX_FRAME_BYTES + " bytes");
+        }
+        return HEADER_BYTES + payloadLength;
+    }
+
+    /**
+     * Decodes the complete frame at offset into the equivalent text protocol
+     * line, so the server's line handlers serve both versions.
+     */
+    public static String decodeLine(byte[] buf, int offset) throws IOException {
+        int length = frameLength(buf, offset);
+        return toLine(buf[offset] & 0xFF, buf, offset + HEADER_BYTES, length - HEADER_BYTES);
+    }
+
+    // Blocking variant: returns null at end of stream
+    public static String readLine(DataInputStream in) throws IOException {
+        int opcode = in.read();
+        if (opcode < 0) {
+            return null;
+        }
+        int payloadLength = in.readInt();
+        if (payloadLength < 0 || payloadLength > MAX_FRAME_BYTES - HEADER_BYTES) {
+            throw new IOException("frame exceeds " + MAX_FRAME_BYTES + " bytes");
+        }
+        byte[] payload = new byte[payloadLength];
+        in.readFully(payload);
+        return toLine(opcode, payload, 0, payloadLength);
+    }
+
+    private static String toLine(int opcode, byte[] buf, int from, int length) throws IOException {
+        if (opcode <= 0 || opcode >= TYPES.length) {
+            throw new IOException("unknown opcode " + opcode);
+        }
+        StringBuilder line = new StringBuilder(length + 16);
+        // A client's CHAT frame is the raw input line, without the type prefix
+        boolean first = opcode == CHAT;
+        if (!first) {
+            line.append(TYPES[opcode]);
+        }
+        int pos = from;
+        int end = from + length;
+        while (pos < end) {
+            if (end - pos < 2) {
+                throw new IOException("truncated field");
+            }
+            int fieldLength = ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+            pos += 2;
+            if (fieldLength > end - pos) {
+                throw new IOException("truncated field");
+            }
+            if (!first) {
+                line.append('|');
+            }
+            first = false;
+            line.append(new String(buf, pos, fieldLength, StandardCharsets.UTF_8));
+            pos += fieldLength;
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,49 @@
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Shared wall clock for server-formatted times. The HH:mm:ss string is
+ * formatted at most once per second and handed out to every caller in that
+ * second, instead of each message building a LocalDateTime, a formatter
+ * context and a new String of its own.
+ */
+public final class ChatClock {
+
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    // One immutable pair, so readers never see a second's string with another's number
+    private static final class Second {
+
+        final long epochSecond;
+        final String text;
+
+        Second(long epochSecond, String text) {
+            this.epochSecond = epochSecond;
+            this.text = text;
+        }
+    }
+
+    private static volatile Second current = new Second(Long.MIN_VALUE, "");
+
+    private ChatClock() {
+    }
+
+    public static long millis() {
+        return System.currentTimeMillis();
+    }
+
+    // HH:mm:ss in the server's time zone
+    public static String timestamp() {
+        long epochSecond = Math.floorDiv(System.currentTimeMillis(), 1000);
+        Second second = current;
+        if (second.epochSecond != epochSecond) {
+            // Racing threads format the same text; whichever lands last is fine
+            String text = LocalTime.ofInstant(Instant.ofEpochSecond(epochSecond), ZoneId.systemDefault()).format(FORMAT);
+            second = new Second(epochSecond, text);
+            current = second;
+        }
+        return second.text;
+    }
+}
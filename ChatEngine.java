@@ -0,0 +1,1975 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The chat server without a window: accepts connections under the configured
+ * thread model, runs the protocol, heartbeats and presence, and records
+ * activity and metrics. Nothing here touches AWT or Swing, so the control
+ * panel, the headless launcher, tests and benchmarks all drive the same
+ * engine through this API: start/stop, the session registry, routing
+ * (broadcast, privateMessage, kick) and any number of {@link Listener}s.
+ */
+public class ChatEngine {
+
+    /**
+     * Session, message and lifecycle events. Called on network threads, in the
+     * order they happen for any one session, so implementations must be quick
+     * and hand slow or UI work to their own thread.
+     */
+    public interface Listener {
+
+        default void started(ServerConfig config) {
+        }
+
+        // After stop(), or when start() could not bind the port
+        default void stopped() {
+        }
+
+        default void joined(String sessionId, String username) {
+        }
+
+        default void renamed(String sessionId, String username) {
+        }
+
+        default void left(String sessionId) {
+        }
+
+        // A chat line from a client, after it was broadcast
+        default void message(String sessionId, String username, String text) {
+        }
+
+        // After delivery; from is "Server" for privateMessage()
+        default void privateMessage(String from, String to, String text) {
+        }
+    }
+
+    /** What the registry knows about one connected session, as of the call. */
+    public static final class SessionInfo {
+
+        public final String id; // remote address:port
+        public final String username;
+        public final long connectTime; // epoch ms
+        public final int messages;
+        public final int queueDepth; // frames waiting to be written
+
+        SessionInfo(String id, String username, long connectTime, int messages, int queueDepth) {
+            this.id = id;
+            this.username = username;
+            this.connectTime = connectTime;
+            this.messages = messages;
+            this.queueDepth = queueDepth;
+        }
+    }
+
+    private static final int MAX_LINE_BYTES = 64 * 1024; // longest inbound line accepted in NIO mode
+    private static final int WRITE_BATCH_BYTES = 8 * 1024; // coalescing buffer per blocking connection
+    private static final int HEARTBEAT_TICK_MS = 100; // how late a heartbeat check may run
+    private static final int CLOSE_FLUSH_MS = 1000; // longest a closing blocking connection may spend writing its queue
+    private static final int ACTIVITY_RING_SIZE = 8192; // activity lines buffered for the front end
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private ServerSocket serverSocket;
+    private volatile NioTransport nioTransport;
+    private volatile boolean isRunning = false;
+    private final ExecutorService threadPool;
+    private volatile ExecutorService connectionExecutor; // runs ClientHandlers for the blocking thread models
+    private volatile ServerConfig activeConfig = new ServerConfig();
+    private volatile long startTime;
+    private final Map<String, ClientSession> connectedClients;
+    private final Map<String, String> clientUsernames; // clientId -> username
+    private final Map<String, ClientSession> sessionsByName; // lower-cased username -> session
+    // Joins, renames and leaves are applied and announced under this lock, so every client
+    // queues the numbered presence deltas in version order
+    private final Object presenceLock = new Object();
+    private long presenceVersion;
+    private volatile MembershipAggregator membership; // batches join/leave announcements while running
+    private volatile TypingAggregator typing; // who is typing, published once per tick
+    private final Map<String, Long> clientConnectTimes; // clientId -> connect epoch
+    private final Map<String, Integer> clientMessageCounts; // clientId -> messages sent
+    private final Map<Command.Kind, CommandHandler> commandHandlers;
+    private volatile TimerWheel heartbeatWheel; // one heartbeat timeout per session
+    private ScheduledExecutorService presenceScheduler;
+
+    private final ActivityLog activityLog = new ActivityLog(ACTIVITY_RING_SIZE);
+    private volatile int logLevel = LogCategory.DEFAULT_LEVEL;
+
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Meter messagesReceived = metrics.meter("messages");
+    private final Metrics.Meter privateMessages = metrics.meter("private_messages");
+    // Client messages by type; "messages" is their total, "private_messages" also counts the operator's
+    private final Metrics.Meter chatMessages = metrics.meter("messages.chat");
+    private final Metrics.Meter broadcastMessages = metrics.meter("messages.broadcast");
+    private final Metrics.Meter fileMessages = metrics.meter("messages.file");
+    private final Metrics.Meter clientPrivateMessages = metrics.meter("messages.private");
+    private final Metrics.Meter bytesIn = metrics.meter("bytes_in");
+    private final Metrics.Meter bytesOut = metrics.meter("bytes_out");
+    private final Metrics.Counter connectionsAccepted = metrics.counter("connections_total");
+    private final Metrics.Counter socketWrites = metrics.counter("socket_writes"); // write calls issued to client sockets
+    private final Metrics.Counter framesWritten = metrics.counter("frames_written"); // frames completed by those writes
+    private final Metrics.Counter heartbeatTimeouts = metrics.counter("heartbeat_timeouts");
+    private final Metrics.Counter slowConsumers = metrics.counter("slow_consumer_disconnects");
+    private final Metrics.Counter privateMessageFailures = metrics.counter("private_message_failures"); // no such recipient
+    private final Metrics.Counter[] commandCounts = commandCounters(); // inbound lines, by Command.Kind ordinal
+    private final LatencyStages latency = new LatencyStages();
+    private MetricsEndpoint metricsEndpoint; // while running, if the config asks for one
+    private final AtomicInteger inMemorySessions = new AtomicInteger(); // numbers attachInMemory() ids, never reused
+
+    public ChatEngine() {
+        threadPool = Executors.newCachedThreadPool();
+        connectedClients = new ConcurrentHashMap<>();
+        clientUsernames = new ConcurrentHashMap<>();
+        sessionsByName = new ConcurrentHashMap<>();
+        clientConnectTimes = new ConcurrentHashMap<>();
+        clientMessageCounts = new ConcurrentHashMap<>();
+        metrics.gauge("clients", connectedClients::size);
+        commandHandlers = createCommandHandlers();
+    }
+
+    // Registered as commands.chat, commands.private...
+    private Metrics.Counter[] commandCounters() {
+        Command.Kind[] kinds = Command.Kind.values();
+        Metrics.Counter[] counters = new Metrics.Counter[kinds.length];
+        for (Command.Kind kind : kinds) {
+            counters[kind.ordinal()] = metrics.counter("commands." + kind.name().toLowerCase(Locale.ROOT));
+        }
+        return counters;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public ActivityLog activityLog() {
+        return activityLog;
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    // Per-stage latency histograms of the message path, by message type
+    public LatencyStages latency() {
+        return latency;
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    // Epoch ms of the last start
+    public long startTime() {
+        return startTime;
+    }
+
+    public int clientCount() {
+        return connectedClients.size();
+    }
+
+    // Every connected session, in no particular order
+    public List<SessionInfo> sessions() {
+        List<SessionInfo> sessions = new ArrayList<>(connectedClients.size());
+        for (ClientSession session : connectedClients.values()) {
+            sessions.add(info(session));
+        }
+        return sessions;
+    }
+
+    // null if no such session is connected
+    public SessionInfo session(String sessionId) {
+        ClientSession session = connectedClients.get(sessionId);
+        return session != null ? info(session) : null;
+    }
+
+    private SessionInfo info(ClientSession session) {
+        return new SessionInfo(session.clientId, session.username,
+                clientConnectTimes.getOrDefault(session.clientId, 0L), messageCount(session.clientId),
+                session.outbound.size());
+    }
+
+    public int messageCount(String sessionId) {
+        return clientMessageCounts.getOrDefault(sessionId, 0);
+    }
+
+    // Frames queued for the session; 0 once it is gone
+    public int queueDepth(String sessionId) {
+        ClientSession session = connectedClients.get(sessionId);
+        return session != null ? session.outbound.size() : 0;
+    }
+
+    // Activity in categories above this level is not recorded; see LogCategory
+    public void setLogLevel(int level) {
+        logLevel = level;
+    }
+
+    /**
+     * Binds the port and serves connections on a pooled thread; returns at once.
+     * A bind failure is reported in the activity log and leaves the engine stopped.
+     */
+    public void start(ServerConfig config) {
+        if (isRunning) {
+            return;
+        }
+        activeConfig = config;
+        int selectedPort = config.port;
+
+        threadPool.execute(() -> {
+            boolean bound = false;
+            try {
+                if (config.threadModel == ServerConfig.ThreadModel.NIO_SELECTOR) {
+                    nioTransport = new NioTransport(selectedPort, 1, false);
+                } else if (config.threadModel == ServerConfig.ThreadModel.MULTI_REACTOR) {
+                    nioTransport = new NioTransport(selectedPort, config.ioLoops, true);
+                } else {
+                    connectionExecutor = threadPool;
+                    if (config.threadModel == ServerConfig.ThreadModel.VIRTUAL_THREAD_PER_CONNECTION) {
+                        ExecutorService virtualThreads = newVirtualThreadExecutor();
+                        if (virtualThreads != null) {
+                            connectionExecutor = virtualThreads;
+                        } else {
+                            if (logging(LogCategory.ERROR)) {
+                                addActivity("[" + ChatClock.timestamp()
+                                        + "] [!] Virtual threads need Java 21+, using the platform thread pool");
+                            }
+                        }
+                    }
+                    serverSocket = new ServerSocket(selectedPort);
+                }
+                bound = true;
+                isRunning = true;
+                startTime = System.currentTimeMillis();
+                startMetricsEndpoint(config);
+
+                addActivity("[" + ChatClock.timestamp() + "] [>] Server started on "
+                        + localAddress() + ":" + selectedPort + " (" + config.threadModel + ")");
+                for (Listener listener : listeners) {
+                    listener.started(config);
+                }
+
+                // Start the heartbeat wheel before the first connection is accepted
+                startHeartbeat();
+                startPresence(config);
+
+                if (nioTransport != null) {
+                    nioTransport.run();
+                } else {
+                    acceptConnections();
+                }
+            } catch (IOException e) {
+                // Once stopping, the accept loop failing is expected
+                if ((!bound || isRunning) && logging(LogCategory.ERROR)) {
+                    addActivity("[" + ChatClock.timestamp() + "] [ERROR] Server error: " + e.getMessage());
+                }
+                if (!bound) {
+                    for (Listener listener : listeners) {
+                        listener.stopped();
+                    }
+                }
+            }
+        });
+    }
+
+    // A scrape endpoint is optional: failing to bind it is reported, and the chat server runs on
+    private synchronized void startMetricsEndpoint(ServerConfig config) {
+        if (config.metricsPort <= 0 || !isRunning) {
+            return; // nothing asked for, or stop() got here first
+        }
+        try {
+            metricsEndpoint = MetricsEndpoint.start(this, config.metricsHost, config.metricsPort);
+            addActivity("[" + ChatClock.timestamp() + "] [>] Metrics at http://" + config.metricsHost + ":"
+                    + config.metricsPort + MetricsEndpoint.PATH);
+        } catch (IOException e) {
+            if (logging(LogCategory.ERROR)) {
+                addActivity("[" + ChatClock.timestamp() + "] [ERROR] Metrics endpoint on port " + config.metricsPort
+                        + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized void stopMetricsEndpoint() {
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+            metricsEndpoint = null;
+        }
+    }
+
+    // First non-loopback IPv4 address, the one to hand out to clients on the LAN
+    public static String localAddress() {
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces.hasMoreElements()) {
+                NetworkInterface iface = interfaces.nextElement();
+                // Skip loopback and inactive interfaces
+                if (iface.isLoopback() || !iface.isUp()) {
+                    continue;
+                }
+
+                Enumeration<InetAddress> addresses = iface.getInetAddresses();
+                while (addresses.hasMoreElements()) {
+                    InetAddress addr = addresses.nextElement();
+                    // Get IPv4 address only
+                    if (addr instanceof Inet4Address) {
+                        String ip = addr.getHostAddress();
+                        // Skip localhost
+                        if (!ip.startsWith("127.")) {
+                            return ip;
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            return "Unable to detect";
+        }
+        return "No network found";
+    }
+
+    // A line from the server operator to everyone
+    public void broadcast(String text) {
+        broadcastMessage(text, "server", "CHAT");
+        addActivity("[" + ChatClock.timestamp() + "] [Broadcast]: " + text);
+    }
+
+    // A private line from the server operator; returns false if nobody has that name
+    public boolean privateMessage(String toUsername, String text) {
+        ClientSession to = sessionsByName.get(nameKey(toUsername));
+        if (to == null || !to.isConnected) {
+            return false;
+        }
+        to.sendFrame(Frame.stamped("PRIVATE", "Server", to.username, text));
+        privateMessages.mark();
+        if (logging(LogCategory.PM)) {
+            addActivity("[" + ChatClock.timestamp() + "] [PM] Server -> " + to.username + ": " + text);
+        }
+        for (Listener listener : listeners) {
+            listener.privateMessage("Server", to.username, text);
+        }
+        return true;
+    }
+
+    // Returns false if the session is already gone
+    public boolean kick(String sessionId) {
+        ClientSession session = connectedClients.get(sessionId);
+        if (session == null) {
+            return false;
+        }
+        session.sendMessage("SYSTEM", "You were disconnected by the server");
+        session.disconnect();
+        return true;
+    }
+
+    // Blocking accept loop: one pooled thread per connected client
+    private void acceptConnections() throws IOException {
+        while (isRunning) {
+            Socket clientSocket = serverSocket.accept();
+            String clientId = clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
+            ClientHandler handler = new ClientHandler(clientSocket, clientId, connectionExecutor);
+            registerSession(handler);
+            connectionExecutor.execute(handler);
+        }
+    }
+
+    // Virtual threads need Java 21; look the factory up reflectively so the server still builds on 17
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    // Common bookkeeping for a freshly accepted connection, whatever the transport
+    private void registerSession(ClientSession session) {
+        connectionsAccepted.increment();
+
+        if (logging(LogCategory.CONNECTION)) {
+            addActivity("[" + ChatClock.timestamp() + "] [+] New client connected: " + session.clientId);
+        }
+
+        connectedClients.put(session.clientId, session);
+        clientConnectTimes.put(session.clientId, System.currentTimeMillis());
+        scheduleHeartbeat(session, session.config.heartbeatIntervalMs);
+    }
+
+    /**
+     * Shuts down in four bounded steps: stop accepting, queue one shutdown notice per
+     * client, give the outbound queues until the drain deadline to empty, then close
+     * every connection. Connections closed this way skip the per-client LEAVE and user
+     * list broadcasts, so the work is O(clients) rather than O(clients^2).
+     */
+    public synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+
+        long started = System.nanoTime();
+        isRunning = false;
+        ServerConfig config = activeConfig;
+        NioTransport transport = nioTransport;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+                serverSocket = null;
+            }
+        } catch (IOException e) {
+            addActivity("Error stopping server: " + e.getMessage());
+        }
+        if (transport != null) {
+            transport.stopAccepting();
+        }
+        stopHeartbeat();
+        stopPresence();
+        stopMetricsEndpoint();
+
+        // Notify all clients about server shutdown through their normal outbound queues
+        int notified = connectedClients.size();
+        broadcastMessage("Server is shutting down...", "server", "SYSTEM");
+        int undrained = awaitOutboundDrain(transport, config.shutdownDrainMs);
+
+        for (ClientSession session : connectedClients.values()) {
+            session.isConnected = false;
+            session.closeTransport();
+        }
+        if (transport != null) {
+            transport.shutdown();
+            nioTransport = null;
+        }
+        connectedClients.clear();
+        clientUsernames.clear();
+        sessionsByName.clear();
+        clientConnectTimes.clear();
+        clientMessageCounts.clear();
+
+        if (connectionExecutor != null && connectionExecutor != threadPool) {
+            connectionExecutor.shutdown();
+        }
+        connectionExecutor = null;
+
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        addActivity("[" + ChatClock.timestamp() + "] Server stopped in " + elapsedMs
+                + " ms: " + notified + " clients notified"
+                + (undrained > 0 ? ", " + undrained + " still had unsent messages at the deadline" : ""));
+        for (Listener listener : listeners) {
+            listener.stopped();
+        }
+    }
+
+    // stop() on the engine's pool, for callers that must not wait out the drain deadline (the EDT)
+    public CompletableFuture<Void> stopInBackground() {
+        return CompletableFuture.runAsync(this::stop, threadPool);
+    }
+
+    // Waits until every outbound queue is empty or the deadline passes; returns how many are not.
+    // In NIO modes the loops first have to run the fan-out tasks already posted to them.
+    private int awaitOutboundDrain(NioTransport transport, int deadlineMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+        if (transport != null) {
+            transport.awaitPostedTasks(deadline);
+        }
+        while (true) {
+            int pending = 0;
+            for (ClientSession session : connectedClients.values()) {
+                if (!session.outbound.isEmpty()) {
+                    pending++;
+                }
+            }
+            if (pending == 0 || System.nanoTime() - deadline >= 0) {
+                return pending;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return pending;
+            }
+        }
+    }
+
+    private void broadcastMessage(String message, String senderId, String messageType) {
+        Frame frame;
+
+        switch (messageType) {
+            case "CHAT" -> {
+                String username = clientUsernames.getOrDefault(senderId, "Server");
+                frame = Frame.stamped("CHAT", username, message);
+            }
+            case "JOIN", "LEAVE", "SYSTEM" ->
+                frame = Frame.stamped(messageType, message);
+            default ->
+                frame = Frame.stamped("CHAT", "Server", message);
+        }
+
+        // Send to all connected clients
+        sendToAll(frame);
+    }
+
+    /**
+     * One typing tick: clients that negotiated the "typing" feature get the whole set as
+     * TYPING_SET, without their own name; the rest get one TYPING per user whose state
+     * changed since the last tick. Every distinct frame is encoded once.
+     */
+    private void flushTyping() {
+        TypingAggregator aggregator = typing;
+        if (aggregator == null) {
+            return;
+        }
+        TypingAggregator.Update update = aggregator.poll(clientUsernames.size());
+        if (update == null) {
+            return;
+        }
+        Frame everyone = Frame.stamped("TYPING_SET", String.join(",", update.typing));
+        // A typist's own copy leaves them out; only typists need one
+        Map<String, Frame> withoutSelf = new ConcurrentHashMap<>();
+        sendToEach("TYPING_SET", session -> {
+            if (!session.joined || !session.typingSets) {
+                return null;
+            }
+            String self = session.username;
+            if (!update.typing.contains(self)) {
+                return everyone;
+            }
+            return withoutSelf.computeIfAbsent(self, name -> {
+                List<String> others = new ArrayList<>(update.typing);
+                others.remove(name);
+                return Frame.stamped("TYPING_SET", String.join(",", others));
+            });
+        });
+        for (Map.Entry<String, Boolean> change : update.changed.entrySet()) {
+            String user = change.getKey();
+            Frame legacy = Frame.stamped("TYPING", user, change.getValue().toString());
+            sendToEach("TYPING", session -> session.joined && !session.typingSets && !user.equals(session.username)
+                    ? legacy : null);
+        }
+    }
+
+    /**
+     * Announces a batch of user list changes, which the caller has already applied to
+     * clientUsernames; call with presenceLock held. Clients that negotiated the delta
+     * feature get at most one numbered USER_REMOVE and one USER_ADD; the rest get a
+     * single full USERLIST, built only if some recipient needs it.
+     */
+    private void publishPresence(List<String> removed, List<String> added) {
+        Frame[] userList = new Frame[1];
+        Supplier<Frame> legacyFrame = () -> {
+            synchronized (userList) {
+                if (userList[0] == null) {
+                    userList[0] = Frame.stamped("USERLIST", String.join(",", clientUsernames.values()));
+                }
+                return userList[0];
+            }
+        };
+        if (!removed.isEmpty()) {
+            Frame delta = Frame.stamped("USER_REMOVE", Long.toString(++presenceVersion), String.join(",", removed));
+            // Legacy clients get their USERLIST with the additions, when there are any
+            sendToAll(delta, added.isEmpty() ? legacyFrame : () -> null);
+        }
+        if (!added.isEmpty()) {
+            sendToAll(Frame.stamped("USER_ADD", Long.toString(++presenceVersion), String.join(",", added)),
+                    legacyFrame);
+        }
+    }
+
+    // Sends whatever the membership aggregator has gathered, once it is due
+    private void flushMembership() {
+        MembershipAggregator aggregator = membership;
+        if (aggregator == null) {
+            return;
+        }
+        synchronized (presenceLock) {
+            MembershipAggregator.Batch batch = aggregator.drain();
+            if (batch == null) {
+                return;
+            }
+            if (!batch.joined.isEmpty()) {
+                broadcastMessage(summarizeNames(batch.joined) + " joined the chat", "server", "JOIN");
+            }
+            if (!batch.left.isEmpty()) {
+                broadcastMessage(summarizeNames(batch.left) + " left the chat", "server", "LEAVE");
+            }
+            publishPresence(batch.removed, batch.added);
+        }
+    }
+
+    // "alice", "alice and bob", "alice, bob, carol and 12 others"
+    private static String summarizeNames(List<String> names) {
+        int shown = names.size() <= 4 ? names.size() : 3;
+        StringBuilder text = new StringBuilder(names.get(0));
+        for (int i = 1; i < shown; i++) {
+            text.append(i == names.size() - 1 ? " and " : ", ").append(names.get(i));
+        }
+        if (shown < names.size()) {
+            text.append(" and ").append(names.size() - shown).append(" others");
+        }
+        return text.toString();
+    }
+
+    // The full list as of the current version; call with presenceLock held
+    private void sendPresenceSnapshot(ClientSession session) {
+        session.sendMessage("PRESENCE", Long.toString(presenceVersion), String.join(",", clientUsernames.values()));
+    }
+
+    // The frame is encoded once by the caller and the same instance is queued for every
+    // recipient. In the NIO modes every event loop fans it out to its own connections.
+    private void sendToAll(Frame frame) {
+        sendToAll(frame, null);
+    }
+
+    // Like sendToAll(frame), but for a presence change: clients without presence deltas get
+    // legacyFrame instead
+    private void sendToAll(Frame frame, Supplier<Frame> legacyFrame) {
+        sendToEach(frame.type(), session -> session.frameFor(frame, legacyFrame));
+    }
+
+    // Fan-out where recipients may get different frames; frameFor returns null to skip one.
+    // It runs on whichever thread or event loop delivers to that session. The fan-out time
+    // is recorded under type.
+    private void sendToEach(String type, Function<ClientSession, Frame> frameFor) {
+        long start = System.nanoTime();
+        NioTransport transport = nioTransport;
+        if (transport != null) {
+            transport.broadcast(type, start, frameFor);
+            return;
+        }
+        for (ClientSession handler : connectedClients.values()) {
+            Frame chosen = frameFor.apply(handler);
+            if (chosen != null) {
+                handler.sendFrame(chosen);
+            }
+        }
+        latency.record(LatencyStages.Stage.FANOUT, type, System.nanoTime() - start);
+    }
+
+    private void sendPrivateMessage(String toUsername, String fromClientId, String content) {
+        String fromUser = clientUsernames.getOrDefault(fromClientId, "Unknown");
+        ClientSession toHandler = sessionsByName.get(nameKey(toUsername));
+
+        if (toHandler != null && toHandler.isConnected) {
+            String toUser = toHandler.username;
+            Frame msg = Frame.stamped("PRIVATE", fromUser, toUser, content);
+            toHandler.sendFrame(msg);
+            ClientSession fromHandler = connectedClients.get(fromClientId);
+            if (fromHandler != null) {
+                fromHandler.sendFrame(msg); // echo to sender
+                incrementMessageCount(fromClientId);
+            }
+            clientPrivateMessages.mark();
+            latency.record(LatencyStages.Stage.FANOUT, msg.type(), System.nanoTime() - msg.builtNanos());
+            privateMessages.mark();
+            if (logging(LogCategory.PM)) {
+                addActivity("[" + ChatClock.timestamp() + "] [PM] " + fromUser + " -> " + toUser + ": " + content);
+            }
+            for (Listener listener : listeners) {
+                listener.privateMessage(fromUser, toUser, content);
+            }
+        } else {
+            privateMessageFailures.increment();
+            ClientSession fromHandler = connectedClients.get(fromClientId);
+            if (fromHandler != null) {
+                fromHandler.sendMessage("SYSTEM", "User '" + toUsername + "' not found");
+            }
+        }
+    }
+
+    private static String nameKey(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    // Reserves the name for the session, or the first free "name2", "name3"... if it is taken.
+    // Returns the name that was claimed.
+    private String claimUsername(String requested, ClientSession session) {
+        String name = requested;
+        int suffix = 2;
+        ClientSession holder;
+        while ((holder = sessionsByName.putIfAbsent(nameKey(name), session)) != null && holder != session) {
+            name = requested + suffix++;
+        }
+        return name;
+    }
+
+    // /nick: unlike joining, an explicit rename to a taken name is refused rather than suffixed
+    private void renameSession(ClientSession session, String requested) {
+        String oldName = session.username;
+        if (requested.isEmpty()) {
+            session.sendMessage("SYSTEM", "Usage: /nick <new name>");
+            return;
+        }
+        ClientSession holder = sessionsByName.putIfAbsent(nameKey(requested), session);
+        if (holder != null && holder != session) {
+            session.sendMessage("SYSTEM", "Username '" + requested + "' is already taken");
+            return;
+        }
+        if (!nameKey(oldName).equals(nameKey(requested))) {
+            sessionsByName.remove(nameKey(oldName), session);
+        }
+        session.username = requested;
+        synchronized (presenceLock) {
+            if (!session.isConnected) {
+                // Lost a race with disconnect(), which already cleaned up under the old name
+                sessionsByName.remove(nameKey(requested), session);
+                return;
+            }
+            sendToAll(Frame.stamped("NICK", oldName, requested));
+            clientUsernames.put(session.clientId, requested);
+            MembershipAggregator aggregator = membership; // null until start()
+            if (aggregator != null) {
+                aggregator.renamed(oldName, requested);
+            }
+            TypingAggregator typists = typing;
+            if (typists != null) {
+                typists.remove(oldName);
+            }
+        }
+        for (Listener listener : listeners) {
+            listener.renamed(session.clientId, requested);
+        }
+        if (logging(LogCategory.CONNECTION)) {
+            addActivity("[" + ChatClock.timestamp() + "] " + oldName + " is now known as " + requested);
+        }
+    }
+
+    // Handles one parsed line for a session; returns false once the client asked to quit
+    private interface CommandHandler {
+        boolean handle(ClientSession session, Command command);
+    }
+
+    // A client's chat line to everyone, counted under the given type
+    private void broadcastChat(ClientSession session, String text, Metrics.Meter byType) {
+        broadcastMessage(text, session.clientId, "CHAT");
+        incrementMessageCount(session.clientId);
+        byType.mark();
+        for (Listener listener : listeners) {
+            listener.message(session.clientId, session.username, text);
+        }
+    }
+
+    private Map<Command.Kind, CommandHandler> createCommandHandlers() {
+        Map<Command.Kind, CommandHandler> handlers = new EnumMap<>(Command.Kind.class);
+        handlers.put(Command.Kind.CHAT, (session, command) -> {
+            broadcastChat(session, command.line(), chatMessages);
+            return true;
+        });
+        handlers.put(Command.Kind.PRESENCE, (session, command) -> {
+            synchronized (presenceLock) {
+                sendPresenceSnapshot(session);
+            }
+            return true;
+        });
+        handlers.put(Command.Kind.PONG, (session, command) -> true); // onLine() already noted the activity
+        handlers.put(Command.Kind.TYPING, (session, command) -> {
+            // TYPING|name|state: the name is the session's own, whatever the client put there
+            TypingAggregator aggregator = typing;
+            if (aggregator != null && session.joined && command.hasRest()) {
+                aggregator.update(session.username, Boolean.parseBoolean(command.rest()), clientUsernames.size());
+            }
+            return true;
+        });
+        handlers.put(Command.Kind.PRIVATE, (session, command) -> {
+            if (command.hasRest()) {
+                sendPrivateMessage(command.arg(), session.clientId, command.rest());
+            } else {
+                session.sendMessage("SYSTEM", "Usage: /w <username> <message>");
+            }
+            return true;
+        });
+        handlers.put(Command.Kind.HELP, (session, command) -> {
+            session.sendMessage("SYSTEM",
+                    "Available commands: /help, /list, /quit, /w <user> <msg>, /nick <name>, /broadcast <msg>, /file <name>");
+            return true;
+        });
+        handlers.put(Command.Kind.LIST, (session, command) -> {
+            session.sendMessage("SYSTEM", "Connected users: " + String.join(", ", clientUsernames.values()));
+            return true;
+        });
+        handlers.put(Command.Kind.NICK, (session, command) -> {
+            renameSession(session, command.arg().trim());
+            return true;
+        });
+        handlers.put(Command.Kind.QUIT, (session, command) -> false);
+        handlers.put(Command.Kind.BROADCAST, (session, command) -> {
+            broadcastChat(session, command.arg(), broadcastMessages);
+            return true;
+        });
+        handlers.put(Command.Kind.FILE, (session, command) -> {
+            broadcastMessage("sent a file: " + command.arg(), session.clientId, "SYSTEM");
+            incrementMessageCount(session.clientId);
+            fileMessages.mark();
+            return true;
+        });
+        return handlers;
+    }
+
+    private void recordSocketWrite(int frames, int bytes) {
+        socketWrites.increment();
+        framesWritten.add(frames);
+        bytesOut.mark(bytes);
+    }
+
+    // head is the first frame the write started, or null when it only resumed a partly sent one
+    private void recordWriteLatency(Frame head, long writeStart, long writeEnd) {
+        if (head != null) {
+            latency.record(LatencyStages.Stage.QUEUE, head.type(), writeStart - head.builtNanos());
+            latency.record(LatencyStages.Stage.WRITE, head.type(), writeEnd - writeStart);
+        }
+    }
+
+    /**
+     * Joins an in-process session whose frames go to the sink instead of a socket,
+     * for benchmarks and tests; returns its session id. It joins at once, without
+     * the welcome message or a membership announcement. Every command can be
+     * dispatched, whether or not the engine has been started.
+     */
+    String attachInMemory(String username, Consumer<Frame> sink) {
+        InMemorySession session = new InMemorySession("mem:" + inMemorySessions.incrementAndGet(), sink);
+        session.username = claimUsername(username, session);
+        connectedClients.put(session.clientId, session);
+        clientMessageCounts.put(session.clientId, 0);
+        synchronized (presenceLock) {
+            clientUsernames.put(session.clientId, session.username);
+            session.joined = true;
+        }
+        return session.clientId;
+    }
+
+    // Handles a line as if the session had sent it; false once it asked to quit
+    boolean dispatch(String sessionId, String line) {
+        return connectedClients.get(sessionId).onLine(line, System.nanoTime());
+    }
+
+    // Delivers on the calling thread, straight to the sink
+    private class InMemorySession extends ClientSession {
+
+        private final Consumer<Frame> sink;
+
+        InMemorySession(String clientId, Consumer<Frame> sink) {
+            super(clientId);
+            this.sink = sink;
+        }
+
+        @Override
+        protected void sendFrame(Frame frame) {
+            if (isConnected) {
+                sink.accept(frame);
+            }
+        }
+
+        @Override
+        protected void scheduleFlush() {
+        }
+
+        @Override
+        protected void closeTransport() {
+        }
+    }
+
+    // Counts bytes as the buffered reader above it refills, so once per read call rather than per byte
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private final Metrics.Meter bytes;
+        private long lastReadNanos; // when the latest bytes arrived; only the reader thread touches it
+
+        CountingInputStream(InputStream in, Metrics.Meter bytes) {
+            super(in);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                lastReadNanos = System.nanoTime();
+                bytes.mark();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                lastReadNanos = System.nanoTime();
+                bytes.mark(count);
+            }
+            return count;
+        }
+    }
+
+    // Per-connection state and command handling shared by every transport
+    private abstract class ClientSession {
+
+        protected final String clientId;
+        protected final ServerConfig config;
+        protected final OutboundQueue outbound;
+        protected volatile boolean isConnected = true;
+        protected boolean binaryProtocol; // negotiated protocol v2 framing
+        protected volatile boolean presenceDeltas; // negotiated the "delta" feature
+        protected volatile boolean typingSets; // negotiated the "typing" feature
+        protected volatile boolean joined; // listed in the user list; set under presenceLock
+        protected volatile String username;
+        protected volatile long lastReadTime = System.currentTimeMillis(); // any inbound line counts as alive
+        protected volatile TimerWheel.Timeout heartbeat;
+        // Reused for every line: onLine() only runs on this session's reader thread or event loop
+        private final Command command = new Command();
+
+        protected ClientSession(String clientId) {
+            this.clientId = clientId;
+            this.username = "User" + (connectedClients.size() + 1); // Default username
+            this.config = activeConfig;
+            this.outbound = new OutboundQueue(config.queueLimit, config.queueLimitUnit, config.overflowPolicy);
+        }
+
+        // Picks this session's copy of a broadcast (see sendToAll(Frame, Supplier)), or null for
+        // none. Presence changes skip sessions that have not joined yet: they get the whole list
+        // when they do.
+        Frame frameFor(Frame frame, Supplier<Frame> legacyFrame) {
+            if (legacyFrame == null) {
+                return frame;
+            }
+            if (!joined) {
+                return null;
+            }
+            return presenceDeltas ? frame : legacyFrame.get();
+        }
+
+        // Queues a message stamped with the current time, e.g. sendMessage("SYSTEM", text)
+        public void sendMessage(String type, String... fields) {
+            sendFrame(Frame.stamped(type, fields));
+        }
+
+        // Queues the frame; never blocks the calling thread on this client's socket
+        protected abstract void sendFrame(Frame frame);
+
+        // Makes sure whatever is already queued gets written
+        protected abstract void scheduleFlush();
+
+        // Called when the outbound queue overflows under the DISCONNECT policy
+        protected void evictSlowConsumer() {
+            if (!isConnected) {
+                return;
+            }
+            slowConsumers.increment();
+            if (logging(LogCategory.CONNECTION)) {
+                addActivity("[" + ChatClock.timestamp() + "] [!] Disconnecting slow client "
+                        + clientUsernames.getOrDefault(clientId, clientId) + " (" + outbound.size() + " messages queued)");
+            }
+            disconnect();
+        }
+
+        // Releases the socket or channel behind this session
+        protected abstract void closeTransport();
+
+        // PROTO|<version>[|feature,...] as the very first line asks for a protocol version and
+        // optional features ("delta": numbered presence deltas instead of full USERLISTs;
+        // "typing": periodic TYPING_SET instead of TYPING per change; "epoch": times as epoch
+        // milliseconds instead of the server's HH:mm:ss). Returns true if the line
+        // was a handshake; the client then sends USERNAME in the negotiated framing.
+        protected boolean negotiate(String firstLine) {
+            if (firstLine == null || !firstLine.startsWith("PROTO|")) {
+                return false;
+            }
+            String[] parts = firstLine.split("\\|");
+            int requested;
+            try {
+                requested = Integer.parseInt(parts[1].trim());
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                requested = 1;
+            }
+            List<String> features = parts.length > 2 ? Arrays.asList(parts[2].split(",")) : List.of();
+            List<String> accepted = new ArrayList<>();
+            if (features.contains("delta")) {
+                presenceDeltas = true;
+                accepted.add("delta");
+            }
+            if (features.contains("typing")) {
+                typingSets = true;
+                accepted.add("typing");
+            }
+            if (features.contains("epoch")) {
+                outbound.useEpochTimes();
+                accepted.add("epoch");
+            }
+            String version = requested >= BinaryProtocol.VERSION ? String.valueOf(BinaryProtocol.VERSION) : "1";
+            Frame reply = accepted.isEmpty()
+                    ? Frame.of("PROTO", version)
+                    : Frame.of("PROTO", version, String.join(",", accepted));
+            if (requested >= BinaryProtocol.VERSION) {
+                binaryProtocol = true;
+                outbound.switchToBinary(reply);
+                scheduleFlush();
+            } else {
+                sendFrame(reply);
+            }
+            return true;
+        }
+
+        // The first line is either USERNAME|name or, for legacy clients, a chat message
+        protected void onFirstLine(String firstLine) {
+            String pendingFirstChatMessage = null;
+            String requested = username;
+            if (firstLine != null && firstLine.startsWith("USERNAME|")) {
+                requested = firstLine.substring(9).trim();
+                if (requested.isEmpty()) {
+                    requested = "User" + (connectedClients.size() + 1);
+                }
+            } else {
+                // Legacy client: treat the first line as a chat message
+                pendingFirstChatMessage = firstLine;
+            }
+
+            // Names are unique ignoring case: a taken one gets a numeric suffix
+            this.username = claimUsername(requested, this);
+            if (!username.equals(requested)) {
+                sendMessage("NICK", requested, username);
+            }
+
+            clientMessageCounts.put(clientId, 0);
+
+            // Send welcome message and notify others
+            sendMessage("SYSTEM", "Welcome to the chat, " + username + "!");
+            boolean registered;
+            synchronized (presenceLock) {
+                registered = isConnected;
+                if (registered) {
+                    // The newcomer gets the full list now; everyone else the addition with the next batch
+                    clientUsernames.put(clientId, username);
+                    joined = true;
+                    MembershipAggregator aggregator = membership; // null until start()
+                    if (aggregator != null) {
+                        aggregator.joined(username);
+                    }
+                    if (presenceDeltas) {
+                        sendPresenceSnapshot(this);
+                    }
+                    // Under the lock, so a disconnect() racing with the join reports left after this
+                    for (Listener listener : listeners) {
+                        listener.joined(clientId, username);
+                    }
+                } else {
+                    // Lost a race with disconnect(), which may have cleaned up before the claim
+                    sessionsByName.remove(nameKey(username), this);
+                    clientMessageCounts.remove(clientId);
+                }
+            }
+            if (!registered) {
+                return; // disconnect() has reported, or will report, the leave; there was no join
+            }
+
+            if (logging(LogCategory.CONNECTION)) {
+                addActivity("[" + ChatClock.timestamp() + "] " + username + " (" + clientId + ") joined");
+            }
+
+            // If the client didn't send USERNAME first, don't drop their first message
+            if (pendingFirstChatMessage != null && !pendingFirstChatMessage.trim().isEmpty()) {
+                broadcastChat(this, pendingFirstChatMessage, chatMessages);
+            }
+        }
+
+        // Handles one inbound line whose last bytes arrived at receivedNanos; returns false once
+        // the client asked to quit
+        protected boolean onLine(String message, long receivedNanos) {
+            lastReadTime = System.currentTimeMillis();
+            long parseStart = System.nanoTime();
+            Command parsed = command.parse(message);
+            String kind = parsed.kind().name();
+            commandCounts[parsed.kind().ordinal()].increment();
+            latency.record(LatencyStages.Stage.READ, kind, parseStart - receivedNanos);
+            latency.record(LatencyStages.Stage.PARSE, kind, System.nanoTime() - parseStart);
+            LogCategory category = LogCategory.forCommand(parsed.kind());
+            if (category != null && logging(category)) {
+                addActivity("[" + ChatClock.timestamp() + "] [" + username + "]: " + message);
+            }
+            return commandHandlers.get(parsed.kind()).handle(this, parsed);
+        }
+
+        protected void reportError(IOException e) {
+            if (isConnected && logging(LogCategory.ERROR)) {
+                addActivity("[" + ChatClock.timestamp() + "] Client " + clientId + " error: " + e.getMessage());
+            }
+        }
+
+        public void disconnect() {
+            if (!isConnected) {
+                return;
+            }
+
+            isConnected = false;
+            TimerWheel.Timeout pendingHeartbeat = heartbeat;
+            if (pendingHeartbeat != null) {
+                pendingHeartbeat.cancel();
+            }
+            if (!isRunning) {
+                // stop() clears the registries in bulk, and nobody is left to tell
+                closeTransport();
+                return;
+            }
+            String leavingUsername = clientUsernames.get(clientId);
+
+            // Clean up
+            connectedClients.remove(clientId);
+            sessionsByName.remove(nameKey(username), this);
+            clientConnectTimes.remove(clientId);
+            clientMessageCounts.remove(clientId);
+
+            // Announce the leave and update the user list with the next membership batch
+            synchronized (presenceLock) {
+                if (clientUsernames.remove(clientId) != null) {
+                    MembershipAggregator aggregator = membership; // null until start()
+                    if (aggregator != null) {
+                        aggregator.left(leavingUsername);
+                    }
+                    TypingAggregator typists = typing;
+                    if (typists != null) {
+                        typists.remove(leavingUsername);
+                    }
+                }
+            }
+
+            for (Listener listener : listeners) {
+                listener.left(clientId);
+            }
+            if (logging(LogCategory.CONNECTION)) {
+                addActivity("[" + ChatClock.timestamp() + "] "
+                        + (leavingUsername != null ? leavingUsername : clientId) + " disconnected");
+            }
+
+            closeTransport();
+        }
+    }
+
+    // Inner class to handle client connections on a dedicated blocking thread
+    private class ClientHandler extends ClientSession implements Runnable {
+
+        private final Socket socket;
+        private final Executor writer;
+        private BufferedReader input;
+        private volatile OutputStream output;
+        private ByteBuffer batchBuffer; // coalesced writes, allocated on the first drain
+        // Set while a drain task is scheduled; only that task writes to the socket
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile boolean closing; // the socket closes once the queue has been written
+
+        public ClientHandler(Socket socket, String clientId, Executor writer) {
+            super(clientId);
+            this.socket = socket;
+            this.writer = writer;
+        }
+
+        @Override
+        public void run() {
+            try {
+                CountingInputStream counted = new CountingInputStream(socket.getInputStream(), bytesIn);
+                InputStream in = new BufferedInputStream(counted);
+                output = socket.getOutputStream();
+                scheduleFlush(); // anything broadcast before the stream was ready
+
+                // The first line is read byte by byte: after a PROTO|2 handshake the stream turns binary
+                String firstLine = readTextLine(in);
+                DataInputStream frames = null;
+                if (negotiate(firstLine)) {
+                    if (binaryProtocol) {
+                        frames = new DataInputStream(in);
+                    }
+                    firstLine = frames != null ? BinaryProtocol.readLine(frames) : readTextLine(in);
+                }
+                if (frames == null) {
+                    input = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                }
+
+                // Wait for username from client (tolerate legacy clients)
+                onFirstLine(firstLine);
+
+                String message;
+                while (isConnected
+                        && (message = frames != null ? BinaryProtocol.readLine(frames) : input.readLine()) != null) {
+                    // The buffers above read ahead, so the latest read is when this line's bytes came in
+                    if (!onLine(message, counted.lastReadNanos)) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                reportError(e);
+            } finally {
+                disconnect();
+            }
+        }
+
+        @Override
+        protected void sendFrame(Frame frame) {
+            if (!isConnected) {
+                return;
+            }
+            switch (outbound.offer(frame)) {
+                case QUEUED ->
+                    scheduleFlush();
+                case OVERFLOW ->
+                    writer.execute(this::evictSlowConsumer);
+                default -> {
+                }
+            }
+        }
+
+        // One line of raw UTF-8, without the terminator; null at end of stream
+        private String readTextLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+                }
+                if (line.size() >= MAX_LINE_BYTES) {
+                    throw new IOException("line exceeds " + MAX_LINE_BYTES + " bytes");
+                }
+                line.write(b);
+            }
+            String text = line.toString(StandardCharsets.UTF_8);
+            return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+        }
+
+        @Override
+        protected void scheduleFlush() {
+            if (output != null && !outbound.isEmpty() && draining.compareAndSet(false, true)) {
+                writer.execute(this::drain);
+            }
+        }
+
+        // Writes queued frames until the queue is empty. The queue's ReentrantLock is never held
+        // across the socket write, so a virtual thread blocked here does not pin its carrier
+        private void drain() {
+            OutputStream out = output;
+            try {
+                while (true) {
+                    if (outbound.isEmpty()) {
+                        draining.set(false);
+                        // A producer may have queued between the check and set(false)
+                        if (outbound.isEmpty() || !draining.compareAndSet(false, true)) {
+                            if (closing) {
+                                closeSocket();
+                            }
+                            return;
+                        }
+                    }
+                    if (config.coalesceWrites) {
+                        writeBatch(out);
+                    } else {
+                        Frame frame = outbound.poll();
+                        if (frame != null) {
+                            long start = System.nanoTime();
+                            frame.writeTo(out);
+                            recordWriteLatency(frame, start, System.nanoTime());
+                            recordSocketWrite(1, frame.length());
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Like PrintWriter, swallow write errors: the reader thread notices the broken socket
+                outbound.clear();
+                draining.set(false);
+                if (closing) {
+                    closeSocket();
+                }
+            }
+        }
+
+        // Sends everything queued (up to one buffer) with a single socket write. Frames that
+        // arrive while a write is blocked are picked up together by the next one.
+        private void writeBatch(OutputStream out) throws IOException {
+            if (batchBuffer == null) {
+                batchBuffer = ByteBuffer.allocate(WRITE_BATCH_BYTES);
+            }
+            batchBuffer.clear();
+            Frame head = outbound.gather(batchBuffer, Integer.MAX_VALUE);
+            int length = batchBuffer.position();
+            long start = System.nanoTime();
+            out.write(batchBuffer.array(), 0, length);
+            recordWriteLatency(head, start, System.nanoTime());
+            recordSocketWrite(outbound.consume(length), length);
+        }
+
+        // Lets the writer send what is already queued (a kick notice, say) before the socket
+        // closes, as NIO sessions do; a client that stops reading gets CLOSE_FLUSH_MS
+        @Override
+        protected void closeTransport() {
+            closing = true;
+            TimerWheel wheel = heartbeatWheel;
+            if (output == null || wheel == null) {
+                closeSocket(); // not started yet, or stop() has already given the queues their deadline
+                return;
+            }
+            wheel.schedule(this::closeSocket, CLOSE_FLUSH_MS);
+            if (draining.compareAndSet(false, true)) {
+                writer.execute(this::drain);
+            }
+            // Otherwise the drain under way closes the socket once the queue is empty
+        }
+
+        private void closeSocket() {
+            try {
+                // Close the socket first: it unblocks a reader thread parked in readLine(),
+                // which otherwise holds the lock BufferedReader.close() waits for
+                if (socket != null) {
+                    socket.close();
+                }
+                if (input != null) {
+                    input.close();
+                }
+                if (output != null) {
+                    output.close();
+                }
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    // NIO transport: a set of event loops, plus a dedicated acceptor thread in multi-reactor mode
+    private class NioTransport {
+
+        private final ServerSocketChannel serverChannel;
+        private final NioReactor[] loops;
+        private final boolean dedicatedAcceptor;
+        private int nextLoop;
+
+        NioTransport(int port, int loopCount, boolean dedicatedAcceptor) throws IOException {
+            this.dedicatedAcceptor = dedicatedAcceptor;
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            loops = new NioReactor[Math.max(1, loopCount)];
+            for (int i = 0; i < loops.length; i++) {
+                // Without a dedicated acceptor the first (only) loop also accepts
+                loops[i] = new NioReactor(dedicatedAcceptor || i > 0 ? null : serverChannel);
+            }
+        }
+
+        // Runs on the calling thread until shutdown: either the single loop or the acceptor
+        void run() throws IOException {
+            if (!dedicatedAcceptor) {
+                loops[0].runLoop();
+                return;
+            }
+
+            for (int i = 0; i < loops.length; i++) {
+                NioReactor loop = loops[i];
+                Thread loopThread = new Thread(() -> {
+                    try {
+                        loop.runLoop();
+                    } catch (IOException e) {
+                        if (isRunning) {
+                            if (logging(LogCategory.ERROR)) {
+                                addActivity("[" + ChatClock.timestamp() + "] [ERROR] I/O loop failed: " + e.getMessage());
+                            }
+                        }
+                    }
+                }, "chat-io-" + i);
+                loopThread.setDaemon(true);
+                loopThread.start();
+            }
+
+            try {
+                while (isRunning) {
+                    SocketChannel channel = serverChannel.accept();
+                    // Round-robin: the channel stays on this loop until it closes
+                    loops[nextLoop].adopt(channel);
+                    nextLoop = (nextLoop + 1) % loops.length;
+                }
+            } catch (IOException e) {
+                // When stopping, stop() shuts the loops down once their queues have drained
+                if (isRunning) {
+                    shutdown();
+                    throw e;
+                }
+            }
+        }
+
+        // Each loop writes the line to its own connections, in parallel with the others
+        void broadcast(String type, long start, Function<ClientSession, Frame> frameFor) {
+            for (NioReactor loop : loops) {
+                loop.execute(() -> loop.sendToOwnSessions(type, start, frameFor));
+            }
+        }
+
+        // Returns once every loop has run the tasks posted to it before this call, or at the deadline
+        void awaitPostedTasks(long deadline) {
+            CountDownLatch barrier = new CountDownLatch(loops.length);
+            for (NioReactor loop : loops) {
+                loop.execute(barrier::countDown);
+            }
+            try {
+                barrier.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Closes the listening channel; the loops keep serving existing connections
+        void stopAccepting() {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+
+        void shutdown() {
+            stopAccepting();
+            for (NioReactor loop : loops) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    // One selector event loop. Every session it owns is only touched from its thread
+    private class NioReactor {
+
+        private final Selector selector;
+        private final ServerSocketChannel serverChannel; // null when an acceptor hands channels over
+        // Shared by all sessions of this loop: only the loop thread reads or writes
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ArrayDeque<NioSession> pendingFlushes = new ArrayDeque<>();
+        private final ArrayList<NioSession> sessions = new ArrayList<>();
+        private final long flushDelayNanos = TimeUnit.MILLISECONDS.toNanos(activeConfig.writeBatchDelayMs);
+        private long flushDeadline; // when the oldest pending flush must go out
+        private volatile boolean running = true;
+        private volatile Thread loopThread;
+
+        NioReactor(ServerSocketChannel serverChannel) throws IOException {
+            selector = Selector.open();
+            this.serverChannel = serverChannel;
+            if (serverChannel != null) {
+                serverChannel.configureBlocking(false);
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            }
+        }
+
+        void runLoop() throws IOException {
+            loopThread = Thread.currentThread();
+            try {
+                while (running) {
+                    if (pendingFlushes.isEmpty()) {
+                        selector.select();
+                    } else {
+                        long waitMillis = TimeUnit.NANOSECONDS.toMillis(flushDeadline - System.nanoTime());
+                        if (waitMillis > 0) {
+                            selector.select(waitMillis);
+                        } else {
+                            selector.selectNow();
+                        }
+                    }
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            if (!key.isValid()) {
+                                continue;
+                            }
+                            if (key.isAcceptable()) {
+                                SocketChannel channel;
+                                while ((channel = serverChannel.accept()) != null) {
+                                    register(channel);
+                                }
+                                continue;
+                            }
+                            NioSession session = (NioSession) key.attachment();
+                            if (key.isReadable()) {
+                                session.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                session.flush();
+                            }
+                        } catch (CancelledKeyException e) {
+                            // Session was closed from another thread while selected
+                        }
+                    }
+
+                    // Flush everything queued during this tick, or once the latency budget runs out
+                    if (!pendingFlushes.isEmpty() && System.nanoTime() - flushDeadline >= 0) {
+                        NioSession session;
+                        while ((session = pendingFlushes.poll()) != null) {
+                            session.flushScheduled = false;
+                            session.flush();
+                        }
+                    }
+                }
+            } finally {
+                // Last chance for disconnects queued by stop()
+                runTasks();
+                for (NioSession session : sessions) {
+                    session.flush();
+                    session.closeChannel();
+                }
+                sessions.clear();
+                try {
+                    if (serverChannel != null) {
+                        serverChannel.close();
+                    }
+                    selector.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == loopThread;
+        }
+
+        // True when work submitted now may run inline without overtaking queued tasks
+        boolean canRunInline() {
+            return inLoop() && tasks.isEmpty();
+        }
+
+        // Runs the task on this loop: inline when already on it and nothing is queued ahead,
+        // otherwise queued with a wakeup. Submission order is preserved either way.
+        void execute(Runnable task) {
+            if (canRunInline()) {
+                task.run();
+            } else {
+                tasks.offer(task);
+                selector.wakeup();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        // Called by the acceptor thread
+        void adopt(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    register(channel);
+                } catch (IOException e) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        }
+
+        private void register(SocketChannel channel) throws IOException {
+            channel.configureBlocking(false);
+            InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+            String clientId = remote.getAddress().getHostAddress() + ":" + remote.getPort();
+            NioSession session = new NioSession(channel, clientId, this);
+            session.key = channel.register(selector, SelectionKey.OP_READ, session);
+            session.loopIndex = sessions.size();
+            sessions.add(session);
+            registerSession(session);
+        }
+
+        private void unregister(NioSession session) {
+            int index = session.loopIndex;
+            if (index < 0 || index >= sessions.size() || sessions.get(index) != session) {
+                return;
+            }
+            // Swap-remove keeps the fan-out list dense
+            NioSession last = sessions.remove(sessions.size() - 1);
+            if (last != session) {
+                sessions.set(index, last);
+                last.loopIndex = index;
+            }
+            session.loopIndex = -1;
+        }
+
+        // start is when the broadcast began, so the sample includes the hop onto this loop
+        void sendToOwnSessions(String type, long start, Function<ClientSession, Frame> frameFor) {
+            for (int i = 0; i < sessions.size(); i++) {
+                NioSession session = sessions.get(i);
+                Frame chosen = frameFor.apply(session);
+                if (chosen != null && session.isConnected) {
+                    session.enqueue(chosen);
+                }
+            }
+            latency.record(LatencyStages.Stage.FANOUT, type, System.nanoTime() - start);
+        }
+
+        // Runs the task on a later tick, even when called from this loop
+        void defer(Runnable task) {
+            tasks.offer(task);
+            selector.wakeup();
+        }
+
+        void scheduleFlush(NioSession session) {
+            if (!session.flushScheduled) {
+                if (pendingFlushes.isEmpty()) {
+                    flushDeadline = System.nanoTime() + flushDelayNanos;
+                }
+                session.flushScheduled = true;
+                pendingFlushes.offer(session);
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+    }
+
+    // Small per-connection state for NIO mode: a partial line and an outbound queue.
+    // Everything but sendMessage/disconnect runs on the owning loop's thread.
+    private class NioSession extends ClientSession {
+
+        private final SocketChannel channel;
+        private final NioReactor loop;
+        private boolean flushScheduled;
+        private int loopIndex = -1;
+        private SelectionKey key;
+        private byte[] partialLine; // bytes of an unterminated line, allocated on demand
+        private int partialLength;
+        private boolean negotiated;
+        private boolean greeted;
+
+        NioSession(SocketChannel channel, String clientId, NioReactor loop) {
+            super(clientId);
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        @Override
+        protected void sendFrame(Frame frame) {
+            if (!isConnected) {
+                return;
+            }
+            if (loop.canRunInline()) {
+                enqueue(frame);
+            } else {
+                // Hop onto the owning loop so writes keep their submission order
+                loop.execute(() -> enqueue(frame));
+            }
+        }
+
+        @Override
+        protected void scheduleFlush() {
+            loop.execute(() -> loop.scheduleFlush(this));
+        }
+
+        private void enqueue(Frame frame) {
+            if (!channel.isOpen() || loopIndex < 0) {
+                return;
+            }
+            switch (outbound.offer(frame)) {
+                case QUEUED ->
+                    loop.scheduleFlush(this);
+                case OVERFLOW ->
+                    // Deferred: we may be inside this loop's fan-out over its session list
+                    loop.defer(this::evictSlowConsumer);
+                default -> {
+                }
+            }
+        }
+
+        // Reads what is available and dispatches every complete line
+        void read() {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            int count;
+            try {
+                count = channel.read(buffer);
+            } catch (IOException e) {
+                reportError(e);
+                disconnect();
+                return;
+            }
+            if (count < 0) {
+                disconnect();
+                return;
+            }
+            long received = System.nanoTime();
+            bytesIn.mark(count);
+
+            byte[] data = buffer.array();
+            if (binaryProtocol) {
+                readFrames(data, 0, count, received);
+                return;
+            }
+            int lineStart = 0;
+            for (int i = 0; i < count; i++) {
+                if (data[i] != '\n') {
+                    continue;
+                }
+                String line = takeLine(data, lineStart, i);
+                lineStart = i + 1;
+                if (!dispatch(line, received)) {
+                    disconnect();
+                    return;
+                }
+                if (!isConnected) {
+                    return;
+                }
+                if (binaryProtocol) {
+                    // Handshake done: the rest of this read is already binary
+                    readFrames(data, lineStart, count, received);
+                    return;
+                }
+            }
+            if (lineStart < count && !appendPartial(data, lineStart, count - lineStart)) {
+                reportError(new IOException("line exceeds " + MAX_LINE_BYTES + " bytes"));
+                disconnect();
+            }
+        }
+
+        // Protocol v2: dispatches every complete frame in data[from, to) and keeps the remainder
+        private void readFrames(byte[] data, int from, int to, long received) {
+            int start = from;
+            try {
+                // Complete the frame left over from the last read, taking only the bytes it needs
+                while (partialLength > 0 && start < to) {
+                    int target = partialLength < BinaryProtocol.HEADER_BYTES
+                            ? BinaryProtocol.HEADER_BYTES
+                            : BinaryProtocol.frameLength(partialLine, 0);
+                    int take = Math.min(target - partialLength, to - start);
+                    appendPartial(data, start, take);
+                    start += take;
+                    if (partialLength >= BinaryProtocol.HEADER_BYTES
+                            && partialLength == BinaryProtocol.frameLength(partialLine, 0)) {
+                        String line = BinaryProtocol.decodeLine(partialLine, 0);
+                        partialLength = 0;
+                        partialLine = null;
+                        if (!deliver(line, received)) {
+                            return;
+                        }
+                    }
+                }
+                while (to - start >= BinaryProtocol.HEADER_BYTES) {
+                    int length = BinaryProtocol.frameLength(data, start);
+                    if (to - start < length) {
+                        break;
+                    }
+                    String line = BinaryProtocol.decodeLine(data, start);
+                    start += length;
+                    if (!deliver(line, received)) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                reportError(e);
+                disconnect();
+                return;
+            }
+            if (start < to) {
+                appendPartial(data, start, to - start); // less than one frame, so always fits
+            }
+        }
+
+        // Dispatches one decoded frame; false once the session is closing
+        private boolean deliver(String line, long received) {
+            if (!dispatch(line, received)) {
+                disconnect();
+                return false;
+            }
+            return isConnected;
+        }
+
+        private String takeLine(byte[] data, int from, int to) {
+            String line;
+            if (partialLength == 0) {
+                int end = to > from && data[to - 1] == '\r' ? to - 1 : to;
+                line = new String(data, from, end - from, StandardCharsets.UTF_8);
+            } else {
+                appendPartial(data, from, to - from);
+                int end = partialLine[partialLength - 1] == '\r' ? partialLength - 1 : partialLength;
+                line = new String(partialLine, 0, end, StandardCharsets.UTF_8);
+                partialLength = 0;
+                partialLine = null;
+            }
+            return line;
+        }
+
+        private boolean appendPartial(byte[] data, int from, int length) {
+            if (partialLength + length > MAX_LINE_BYTES) {
+                return false;
+            }
+            if (partialLine == null) {
+                partialLine = new byte[Math.max(256, length)];
+            } else if (partialLength + length > partialLine.length) {
+                partialLine = Arrays.copyOf(partialLine, Math.max(partialLine.length * 2, partialLength + length));
+            }
+            System.arraycopy(data, from, partialLine, partialLength, length);
+            partialLength += length;
+            return true;
+        }
+
+        private boolean dispatch(String line, long received) {
+            if (!greeted) {
+                if (!negotiated) {
+                    negotiated = true;
+                    if (negotiate(line)) {
+                        return true;
+                    }
+                }
+                greeted = true;
+                onFirstLine(line);
+                return true;
+            }
+            return onLine(line, received);
+        }
+
+        // Writes as much queued output as the socket accepts without blocking
+        void flush() {
+            if (!channel.isOpen()) {
+                outbound.clear();
+                return;
+            }
+            // Frames are shared with every other recipient, so copy through the loop's buffer
+            // rather than allocating a per-recipient view of each one. With coalescing on,
+            // everything pending goes out in one write per tick.
+            ByteBuffer buffer = loop.writeBuffer;
+            int framesPerWrite = config.coalesceWrites ? Integer.MAX_VALUE : 1;
+            try {
+                while (!outbound.isEmpty()) {
+                    buffer.clear();
+                    Frame head = outbound.gather(buffer, framesPerWrite);
+                    buffer.flip();
+                    long start = System.nanoTime();
+                    int written = channel.write(buffer);
+                    recordWriteLatency(head, start, System.nanoTime());
+                    recordSocketWrite(outbound.consume(written), written);
+                    if (buffer.hasRemaining()) {
+                        // Socket buffer is full: resume when the selector reports it writable
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                reportError(e);
+                disconnect();
+            } catch (CancelledKeyException e) {
+                outbound.clear();
+            }
+        }
+
+        void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+
+        // Runs on the owning loop so lines queued before the disconnect still get a chance to go out
+        @Override
+        protected void closeTransport() {
+            loop.execute(() -> {
+                flush();
+                closeChannel();
+                loop.unregister(this);
+                outbound.clear();
+            });
+        }
+    }
+
+    // Check before building a line, so filtered-out activity costs nothing
+    private boolean logging(LogCategory category) {
+        return category.level <= logLevel;
+    }
+
+    // Queues a line for whichever front end drains the activity log; safe from any thread
+    private void addActivity(String message) {
+        activityLog.publish(message);
+    }
+
+
+    private void incrementMessageCount(String clientId) {
+        clientMessageCounts.merge(clientId, 1, Integer::sum);
+        messagesReceived.mark();
+    }
+
+
+    private void startHeartbeat() {
+        stopHeartbeat();
+        heartbeatWheel = new TimerWheel(HEARTBEAT_TICK_MS, 1024, "chat-heartbeat");
+    }
+
+    private void stopHeartbeat() {
+        if (heartbeatWheel != null) {
+            heartbeatWheel.stop();
+            heartbeatWheel = null;
+        }
+    }
+
+    // Each session has one pending heartbeat timeout, rescheduled every time it fires
+    private void scheduleHeartbeat(ClientSession session, long delayMillis) {
+        TimerWheel wheel = heartbeatWheel;
+        if (wheel != null && session.isConnected) {
+            session.heartbeat = wheel.schedule(() -> checkHeartbeat(session), delayMillis);
+        }
+    }
+
+    /**
+     * Runs on the wheel thread. A session that has sent anything within the interval
+     * needs no PING; one that has been silent that long gets a PING every interval, and
+     * is dropped once it has been silent for the whole timeout.
+     */
+    private void checkHeartbeat(ClientSession session) {
+        if (!session.isConnected) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long lastRead = session.lastReadTime;
+        long idle = now - lastRead;
+        long interval = session.config.heartbeatIntervalMs;
+        long timeout = session.config.heartbeatTimeoutMs;
+        if (idle >= timeout) {
+            heartbeatTimeouts.increment();
+            if (logging(LogCategory.CONNECTION)) {
+                addActivity("[" + ChatClock.timestamp() + "] No PONG from "
+                        + clientUsernames.getOrDefault(session.clientId, session.clientId) + " in " + idle / 1000
+                        + "s, disconnecting...");
+            }
+            session.disconnect();
+            return;
+        }
+        if (idle < interval) {
+            scheduleHeartbeat(session, lastRead + interval - now);
+            return;
+        }
+        session.sendMessage("PING");
+        scheduleHeartbeat(session, Math.min(interval, lastRead + timeout - now));
+    }
+
+    // Membership batches and typing ticks share one scheduler thread
+    private void startPresence(ServerConfig config) {
+        stopPresence();
+        presenceScheduler = Executors.newSingleThreadScheduledExecutor();
+        membership = new MembershipAggregator(config.membershipQuietMs, config.membershipWindowMs,
+                presenceScheduler, this::flushMembership);
+        typing = new TypingAggregator(config.typingMaxRoomSize, config.typingExpiryMs);
+        long tickMs = 1000 / Math.max(1, config.typingUpdatesPerSecond);
+        presenceScheduler.scheduleAtFixedRate(() -> {
+            try {
+                flushTyping();
+            } catch (RuntimeException e) {
+                // Keep ticking: a failed tick must not cancel the schedule
+            }
+        }, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Pending announcements are dropped: nobody is left to receive them
+    private void stopPresence() {
+        if (presenceScheduler != null) {
+            presenceScheduler.shutdownNow();
+            presenceScheduler = null;
+        }
+    }
+
+}
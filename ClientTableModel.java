@@ -0,0 +1,254 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.ToIntFunction;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Rows of the clients tab, one per session id. Network threads never touch
+ * the rows: connects, renames and disconnects are queued from any thread, and
+ * {@link #refresh()} (on the EDT, from a timer) applies them in one batch,
+ * then reads message counts and queue depths for the online rows and fires
+ * one update event for whatever changed. Disconnected sessions stay visible
+ * as Offline rows, but only the most recent ones are kept.
+ */
+public class ClientTableModel extends AbstractTableModel {
+
+    private static final int MAX_DELETE_EVENTS = 64;
+    private static final String[] COLUMNS = {"Username", "IP Address", "Connect Time", "Status", "Messages Sent", "Queue"};
+
+    private static final class Row {
+
+        final String id;
+        final String ip;
+        final String connectTime;
+        String username;
+        boolean online = true;
+        int messages;
+        int queue;
+        boolean dirty; // changed since the last update event
+        boolean removed;
+
+        Row(String id, String username, String ip, String connectTime) {
+            this.id = id;
+            this.username = username;
+            this.ip = ip;
+            this.connectTime = connectTime;
+        }
+    }
+
+    private final int historyLimit;
+    private final ToIntFunction<String> messages; // session id -> messages sent
+    private final ToIntFunction<String> queueDepth; // session id -> frames queued
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    // EDT only from here on
+    private final List<Row> rows = new ArrayList<>(); // what the table has been told about
+    private final List<Row> added = new ArrayList<>(); // connected since the last refresh
+    private final Map<String, Row> byId = new HashMap<>();
+    private final ArrayDeque<Row> history = new ArrayDeque<>(); // offline rows, oldest first
+    private int removedCount;
+
+    public ClientTableModel(int historyLimit, ToIntFunction<String> messages, ToIntFunction<String> queueDepth) {
+        this.historyLimit = historyLimit;
+        this.messages = messages;
+        this.queueDepth = queueDepth;
+    }
+
+    // The change methods below are safe from any thread; they take effect on the next refresh()
+
+    public void connected(String id, String username, String ip, String connectTime) {
+        pending.add(() -> {
+            Row old = byId.get(id);
+            if (old != null) {
+                history.remove(old); // the same address and port again: drop the old row
+                remove(old);
+            }
+            Row row = new Row(id, username, ip, connectTime);
+            added.add(row);
+            byId.put(id, row);
+        });
+    }
+
+    public void renamed(String id, String username) {
+        pending.add(() -> {
+            Row row = byId.get(id);
+            if (row != null) {
+                row.username = username;
+                row.dirty = true;
+            }
+        });
+    }
+
+    public void disconnected(String id) {
+        pending.add(() -> {
+            Row row = byId.get(id);
+            if (row != null && row.online) {
+                goOffline(row);
+            }
+        });
+    }
+
+    // The server stopped: every row becomes history
+    public void allOffline() {
+        pending.add(() -> {
+            for (List<Row> list : List.of(rows, added)) {
+                for (Row row : list) {
+                    if (row.online && !row.removed) {
+                        goOffline(row);
+                    }
+                }
+            }
+        });
+    }
+
+    private void goOffline(Row row) {
+        row.online = false;
+        row.queue = 0;
+        row.dirty = true;
+        history.addLast(row);
+        while (history.size() > historyLimit) {
+            remove(history.removeFirst());
+        }
+    }
+
+    private void remove(Row row) {
+        if (!row.removed) {
+            row.removed = true;
+            byId.remove(row.id, row);
+            removedCount++;
+        }
+    }
+
+    /**
+     * Applies queued changes and polls the online rows' counters; call on the EDT.
+     * Fires one deletion per run of removed rows, then at most one update and one
+     * insertion. Returns whether any session connected or disconnected.
+     */
+    public boolean refresh() {
+        boolean structural = !pending.isEmpty();
+        Runnable change;
+        while ((change = pending.poll()) != null) {
+            change.run();
+        }
+        if (removedCount > 0) {
+            compact();
+        }
+
+        // Rows already shown: one update event spanning whatever changed
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < rows.size(); i++) {
+            Row row = rows.get(i);
+            if (row.online) {
+                int sent = messages.applyAsInt(row.id);
+                int depth = queueDepth.applyAsInt(row.id);
+                if (sent != row.messages || depth != row.queue) {
+                    row.messages = sent;
+                    row.queue = depth;
+                    row.dirty = true;
+                }
+            }
+            if (row.dirty) {
+                row.dirty = false;
+                if (first < 0) {
+                    first = i;
+                }
+                last = i;
+            }
+        }
+        if (first >= 0) {
+            fireTableRowsUpdated(first, last);
+        }
+
+        int start = rows.size();
+        for (Row row : added) {
+            if (!row.removed) { // a row can connect and fall out of history within one batch
+                row.dirty = false;
+                rows.add(row);
+            }
+        }
+        added.clear();
+        if (rows.size() > start) {
+            fireTableRowsInserted(start, rows.size() - 1);
+        }
+        return structural;
+    }
+
+    /**
+     * Drops removed rows in one pass and fires one deletion per run of them, last
+     * run first so the indexes of the earlier runs stay valid. A scattered purge
+     * is reported as one full change instead, which drops the selection.
+     */
+    private void compact() {
+        List<int[]> runs = new ArrayList<>();
+        int kept = 0;
+        int runStart = -1;
+        for (int i = 0; i < rows.size(); i++) {
+            Row row = rows.get(i);
+            if (row.removed) {
+                if (runStart < 0) {
+                    runStart = i;
+                }
+                continue;
+            }
+            if (runStart >= 0) {
+                runs.add(new int[] {runStart, i - 1});
+                runStart = -1;
+            }
+            rows.set(kept++, row);
+        }
+        if (runStart >= 0) {
+            runs.add(new int[] {runStart, rows.size() - 1});
+        }
+        rows.subList(kept, rows.size()).clear();
+        removedCount = 0;
+
+        if (runs.size() > MAX_DELETE_EVENTS) {
+            fireTableDataChanged(); // cheaper for the table than thousands of scattered deletions
+            return;
+        }
+        for (int r = runs.size() - 1; r >= 0; r--) {
+            fireTableRowsDeleted(runs.get(r)[0], runs.get(r)[1]);
+        }
+    }
+
+    public String sessionIdAt(int rowIndex) {
+        return rows.get(rowIndex).id;
+    }
+
+    public boolean isOnline(int rowIndex) {
+        return rows.get(rowIndex).online;
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int column) {
+        Row row = rows.get(rowIndex);
+        return switch (column) {
+            case 0 -> row.username;
+            case 1 -> row.ip;
+            case 2 -> row.connectTime;
+            case 3 -> row.online ? "Online" : "Offline";
+            case 4 -> row.messages;
+            default -> row.queue;
+        };
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * One inbound line, classified in a single pass. Each session reuses one
+ * instance: parsing records the kind of line and where its arguments sit
+ * inside it, without cutting substrings, and handlers only build the strings
+ * they actually pass on. Plain chat text is used as-is.
+ */
+public final class Command {
+
+    public enum Kind {
+        CHAT,      // plain text, broadcast as-is
+        PONG,      // heartbeat reply
+        PRESENCE,  // request for a full user list snapshot
+        TYPING,    // TYPING|username|true/false
+        PRIVATE,   // /w or /pm <user> <message>
+        NICK,      // /nick <new name>
+        HELP,
+        LIST,
+        QUIT,
+        BROADCAST, // /broadcast <message>
+        FILE       // /file <name>
+    }
+
+    private String line;
+    private Kind kind;
+    private int argStart; // first argument: /w recipient, typing username, /broadcast text...
+    private int argEnd;
+    private int restStart; // text after the first argument, or -1 when there is none
+
+    public Command parse(String line) {
+        this.line = line;
+        kind = Kind.CHAT;
+        argStart = argEnd = line.length();
+        restStart = -1;
+        if (line.isEmpty()) {
+            return this;
+        }
+        switch (line.charAt(0)) {
+            case '/' ->
+                parseSlashCommand();
+            case 'P' -> {
+                if (line.startsWith("PONG")) {
+                    kind = Kind.PONG;
+                } else if (line.equals("PRESENCE")) {
+                    kind = Kind.PRESENCE;
+                }
+            }
+            case 'T' -> {
+                if (line.startsWith("TYPING|")) {
+                    // The state follows the last '|': a username may itself contain one
+                    kind = Kind.TYPING;
+                    argStart = 7;
+                    int split = line.lastIndexOf('|');
+                    if (split >= argStart) {
+                        argEnd = split;
+                        restStart = split + 1;
+                    }
+                }
+            }
+            default -> {
+            }
+        }
+        return this;
+    }
+
+    private void parseSlashCommand() {
+        int length = line.length();
+        int wordEnd = line.indexOf(' ');
+        if (wordEnd < 0) {
+            // Argument-less commands match the whole line, ignoring case
+            if (isWord("help", length, true)) {
+                kind = Kind.HELP;
+            } else if (isWord("list", length, true)) {
+                kind = Kind.LIST;
+            } else if (isWord("quit", length, true)) {
+                kind = Kind.QUIT;
+            }
+            return;
+        }
+
+        if (isWord("w", wordEnd, false) || isWord("pm", wordEnd, false)) {
+            kind = Kind.PRIVATE;
+            argStart = wordEnd + 1;
+            int userEnd = line.indexOf(' ', argStart);
+            if (userEnd >= 0) {
+                argEnd = userEnd;
+                restStart = userEnd + 1;
+            }
+        } else if (isWord("nick", wordEnd, false)) {
+            kind = Kind.NICK;
+            argStart = wordEnd + 1;
+        } else if (isWord("broadcast", wordEnd, false)) {
+            kind = Kind.BROADCAST;
+            argStart = wordEnd + 1;
+        } else if (isWord("file", wordEnd, false)) {
+            kind = Kind.FILE;
+            argStart = wordEnd + 1;
+        }
+    }
+
+    // Whether the text between the leading '/' and wordEnd is the given word
+    private boolean isWord(String word, int wordEnd, boolean ignoreCase) {
+        return wordEnd - 1 == word.length() && line.regionMatches(ignoreCase, 1, word, 0, word.length());
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    public String line() {
+        return line;
+    }
+
+    public String arg() {
+        return line.substring(argStart, argEnd);
+    }
+
+    public boolean hasRest() {
+        return restStart >= 0;
+    }
+
+    public String rest() {
+        return line.substring(restStart);
+    }
+}
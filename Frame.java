@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One encoded protocol message waiting to be written to a client. Frames are
+ * immutable once built, so a broadcast encodes its message a single time and
+ * queues the same instance for every recipient. A frame starts out in the
+ * text encoding; {@link #binary()} gives the protocol v2 encoding of the same
+ * message, built once and shared by every binary client. Likewise a stamped
+ * frame's {@link #epoch()} variant carries epoch milliseconds instead of the
+ * formatted HH:mm:ss, for clients that format times themselves. Every
+ * frame remembers when it was built, so the writer can tell how long it
+ * waited before reaching the socket.
+ */
+public final class Frame {
+
+    private final String type;
+    private final String[] fields;
+    private final byte[] bytes;
+    private final boolean binary;
+    // Frames sharing a key carry state where only the newest matters (user list,
+    // typing set, one user's typing flag); null means the frame can never be superseded
+    private final String coalesceKey;
+    private final long epochMillis; // when a stamped frame was made; -1 for unstamped frames
+    private final boolean epochVariant; // fields[0] holds epochMillis rather than HH:mm:ss
+    private final long builtNanos; // System.nanoTime() when the message was built; shared by its variants
+    private volatile Frame binaryFrame;
+    private volatile Frame epochFrame;
+
+    private Frame(String type, String[] fields, boolean binary, long epochMillis, boolean epochVariant, long builtNanos) {
+        this.type = type;
+        this.fields = fields;
+        this.binary = binary;
+        this.epochMillis = epochMillis;
+        this.epochVariant = epochVariant;
+        this.builtNanos = builtNanos;
+        this.bytes = binary ? BinaryProtocol.encode(type, fields) : textBytes(type, fields);
+        this.coalesceKey = coalesceKeyOf(type, fields);
+    }
+
+    // A message of the given type with exactly these fields, e.g. of("PROTO", version)
+    public static Frame of(String type, String... fields) {
+        return new Frame(type, fields, false, -1, false, System.nanoTime());
+    }
+
+    // A message whose first field is the current time, e.g. stamped("CHAT", username, text)
+    public static Frame stamped(String type, String... fields) {
+        String[] all = new String[fields.length + 1];
+        all[0] = ChatClock.timestamp();
+        System.arraycopy(fields, 0, all, 1, fields.length);
+        return new Frame(type, all, false, ChatClock.millis(), false, System.nanoTime());
+    }
+
+    // TYPE|field|field...\n, with line breaks inside fields flattened for text clients
+    private static byte[] textBytes(String type, String[] fields) {
+        int length = type.length() + 1;
+        for (String field : fields) {
+            length += field.length() + 1;
+        }
+        StringBuilder line = new StringBuilder(length).append(type); // sized once, no regrowth
+        for (String field : fields) {
+            line.append('|');
+            if (field.indexOf('\n') >= 0 || field.indexOf('\r') >= 0) {
+                field = field.replace('\r', ' ').replace('\n', ' ');
+            }
+            line.append(field);
+        }
+        return line.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String coalesceKeyOf(String type, String[] fields) {
+        if (type.equals("USERLIST") || type.equals("TYPING_SET")) {
+            return type;
+        }
+        if (type.equals("TYPING") && fields.length >= 3) {
+            return "TYPING|" + fields[1]; // TYPING|ts|username|true/false -> keyed by username
+        }
+        return null;
+    }
+
+    public Frame binary() {
+        if (binary) {
+            return this;
+        }
+        Frame encoded = binaryFrame;
+        if (encoded == null) {
+            // Racing encoders build equal frames, so whichever lands last is fine
+            encoded = new Frame(type, fields, true, epochMillis, epochVariant, builtNanos);
+            binaryFrame = encoded;
+        }
+        return encoded;
+    }
+
+    // The same message with its time as epoch milliseconds; unstamped frames are returned as-is
+    public Frame epoch() {
+        if (epochMillis < 0 || epochVariant) {
+            return this;
+        }
+        Frame encoded = epochFrame;
+        if (encoded == null) {
+            String[] epochFields = fields.clone();
+            epochFields[0] = Long.toString(epochMillis);
+            encoded = new Frame(type, epochFields, binary, epochMillis, true, builtNanos);
+            epochFrame = encoded;
+        }
+        return encoded;
+    }
+
+    // The message type, such as CHAT or USERLIST
+    public String type() {
+        return type;
+    }
+
+    public long builtNanos() {
+        return builtNanos;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    public String coalesceKey() {
+        return coalesceKey;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    // Copies as much of the frame as fits in dst, starting at offset; returns the byte count
+    public int copyTo(ByteBuffer dst, int offset) {
+        int count = Math.min(bytes.length - offset, dst.remaining());
+        dst.put(bytes, offset, count);
+        return count;
+    }
+}
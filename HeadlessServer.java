@@ -0,0 +1,278 @@
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the chat server without a display: java HeadlessServer [options].
+ * Settings come from a properties file (--config), overridden by command-line
+ * options of the same names; activity and periodic metrics go to stdout or to
+ * a file. Nothing on this path loads AWT or Swing. Ctrl+C (or SIGTERM) stops
+ * the server the same way the control panel's Stop button does.
+ */
+public class HeadlessServer {
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java HeadlessServer [--config file] [--option value]...",
+            "  --port 12345",
+            "  --threads thread|virtual|nio|reactor",
+            "  --io-loops N             event loops in reactor mode",
+            "  --queue-limit 1000       per-client outbound queue",
+            "  --queue-unit " + String.join("|", names(OutboundQueue.LimitUnit.values())),
+            "  --overflow " + String.join("|", names(OutboundQueue.OverflowPolicy.values())),
+            "  --coalesce true|false    gather pending frames into one socket write",
+            "  --batch-delay-ms 0       how long NIO loops may wait for more frames",
+            "  --heartbeat 30           seconds of silence before a PING; dropped after 3x",
+            "  --log-level 4            1 errors ... 5 everything, see LogCategory",
+            "  --log file               append activity here instead of stdout",
+            "  --stats 10               seconds between metrics lines, 0 for none",
+            "  --latency-csv file       rewrite per-stage latency percentiles here with every",
+            "                           metrics line and on shutdown",
+            "  --metrics-port 0         serve Prometheus metrics at /metrics on this port",
+            "  --metrics-host 127.0.0.1 address the metrics endpoint binds",
+            "A --config file takes the same names as keys, without the dashes.");
+
+    private static final int DRAIN_INTERVAL_MS = 100;
+
+    private final Object outputLock = new Object(); // drains come from the output thread and the shutdown hook
+    private final PrintStream out;
+    private final ChatEngine engine = new ChatEngine();
+    private final String latencyCsv; // null when not exporting
+    private Metrics.Snapshot lastStats;
+
+    private HeadlessServer(PrintStream out, String latencyCsv) {
+        this.out = out;
+        this.latencyCsv = latencyCsv;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties options;
+        try {
+            options = parseArguments(args);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        ServerConfig config;
+        int logLevel;
+        int statsSeconds;
+        try {
+            config = toConfig(options);
+            logLevel = Integer.parseInt(options.getProperty("log-level", String.valueOf(LogCategory.DEFAULT_LEVEL)));
+            statsSeconds = Integer.parseInt(options.getProperty("stats", "10"));
+        } catch (IllegalArgumentException e) { // NumberFormatException included
+            System.err.println("Invalid option: " + e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        String logFile = options.getProperty("log");
+        PrintStream out = logFile != null
+                ? new PrintStream(new FileOutputStream(logFile, true), false, StandardCharsets.UTF_8)
+                : new PrintStream(new FileOutputStream(java.io.FileDescriptor.out), false, StandardCharsets.UTF_8);
+
+        AtomicBoolean started = new AtomicBoolean();
+        CountDownLatch stopped = new CountDownLatch(1);
+        HeadlessServer server = new HeadlessServer(out, options.getProperty("latency-csv"));
+        server.engine.addListener(new ChatEngine.Listener() {
+            @Override
+            public void started(ServerConfig config) {
+                started.set(true);
+            }
+
+            @Override
+            public void stopped() {
+                stopped.countDown();
+            }
+        });
+        server.engine.setLogLevel(logLevel);
+
+        ScheduledExecutorService output = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "chat-output");
+            thread.setDaemon(true);
+            return thread;
+        });
+        output.scheduleWithFixedDelay(server::drainActivity, DRAIN_INTERVAL_MS, DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (statsSeconds > 0) {
+            output.scheduleAtFixedRate(server::printStats, statsSeconds, statsSeconds, TimeUnit.SECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.engine.stop();
+            server.drainActivity();
+            server.exportLatency();
+        }, "chat-shutdown"));
+
+        server.engine.start(config);
+        stopped.await();
+        server.drainActivity();
+        if (!started.get()) {
+            System.exit(1); // could not bind the port; the reason is in the activity output
+        }
+    }
+
+    // --name value pairs over the --config file's properties
+    private static Properties parseArguments(String[] args) throws IOException {
+        Properties options = new Properties();
+        Properties overrides = new Properties();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--help") || arg.equals("-h")) {
+                throw new IllegalArgumentException("Chat server without a display.");
+            }
+            if (!arg.startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --option value, got: " + arg);
+            }
+            String name = arg.substring(2);
+            String value = args[++i];
+            if (name.equals("config")) {
+                try (InputStream in = new FileInputStream(value)) {
+                    options.load(in);
+                }
+            } else {
+                overrides.setProperty(name, value);
+            }
+        }
+        options.putAll(overrides);
+        return options;
+    }
+
+    private static ServerConfig toConfig(Properties options) {
+        ServerConfig config = new ServerConfig();
+        for (String name : options.stringPropertyNames()) {
+            String value = options.getProperty(name).trim();
+            switch (name) {
+                case "port" ->
+                    config.port = Integer.parseInt(value);
+                case "threads" ->
+                    config.threadModel = threadModel(value);
+                case "io-loops" ->
+                    config.ioLoops = Integer.parseInt(value);
+                case "queue-limit" ->
+                    config.queueLimit = Integer.parseInt(value);
+                case "queue-unit" ->
+                    config.queueLimitUnit = OutboundQueue.LimitUnit.valueOf(value.toUpperCase(Locale.ROOT));
+                case "overflow" ->
+                    config.overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(value.toUpperCase(Locale.ROOT));
+                case "coalesce" ->
+                    config.coalesceWrites = Boolean.parseBoolean(value);
+                case "batch-delay-ms" ->
+                    config.writeBatchDelayMs = Integer.parseInt(value);
+                case "metrics-port" ->
+                    config.metricsPort = Integer.parseInt(value);
+                case "metrics-host" ->
+                    config.metricsHost = value;
+                case "heartbeat" -> {
+                    config.heartbeatIntervalMs = Integer.parseInt(value) * 1000;
+                    config.heartbeatTimeoutMs = config.heartbeatIntervalMs * 3;
+                }
+                case "log-level", "log", "stats", "latency-csv" -> {
+                    // Not server settings; read by main()
+                }
+                default ->
+                    throw new IllegalArgumentException("unknown option " + name);
+            }
+        }
+        return config;
+    }
+
+    private static ServerConfig.ThreadModel threadModel(String value) {
+        return switch (value.toLowerCase(Locale.ROOT)) {
+            case "thread" ->
+                ServerConfig.ThreadModel.THREAD_PER_CONNECTION;
+            case "virtual" ->
+                ServerConfig.ThreadModel.VIRTUAL_THREAD_PER_CONNECTION;
+            case "nio" ->
+                ServerConfig.ThreadModel.NIO_SELECTOR;
+            case "reactor" ->
+                ServerConfig.ThreadModel.MULTI_REACTOR;
+            default ->
+                ServerConfig.ThreadModel.valueOf(value.toUpperCase(Locale.ROOT));
+        };
+    }
+
+    private static String[] names(Enum<?>[] values) {
+        String[] names = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            names[i] = values[i].name().toLowerCase(Locale.ROOT);
+        }
+        return names;
+    }
+
+    private void drainActivity() {
+        synchronized (outputLock) {
+            List<String> lines = new ArrayList<>();
+            ActivityLog activityLog = engine.activityLog();
+            activityLog.drain(lines::add, Integer.MAX_VALUE);
+            long dropped = activityLog.takeDropped();
+            for (String line : lines) {
+                out.println(line);
+            }
+            if (dropped > 0) {
+                out.println("[" + ChatClock.timestamp() + "] [!] " + dropped + " activity lines dropped: output fell behind");
+            }
+            if (!lines.isEmpty() || dropped > 0) {
+                out.flush();
+            }
+        }
+    }
+
+    private void printStats() {
+        Metrics.Snapshot stats = engine.metrics().snapshot();
+        Metrics.Snapshot previous = lastStats;
+        lastStats = stats;
+        Runtime runtime = Runtime.getRuntime();
+        long heapMb = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+        String line = String.format(Locale.ROOT,
+                "[%s] [stats] clients=%d connections=%d messages=%d (%.1f/s) pms=%d (%.1f/s)"
+                        + " in=%.1f KB/s out=%.1f KB/s writes=%d heap=%d MB",
+                ChatClock.timestamp(), stats.get("clients"), stats.get("connections_total"),
+                stats.get("messages"), stats.rate("messages", previous),
+                stats.get("private_messages"), stats.rate("private_messages", previous),
+                stats.rate("bytes_in", previous) / 1024, stats.rate("bytes_out", previous) / 1024,
+                stats.get("socket_writes"), heapMb);
+        synchronized (outputLock) {
+            out.println(line);
+            out.flush();
+        }
+        exportLatency();
+    }
+
+    // Written to a temporary file and moved into place, so a reader never sees half a table
+    private void exportLatency() {
+        if (latencyCsv == null) {
+            return;
+        }
+        Path target = Paths.get(latencyCsv).toAbsolutePath();
+        try {
+            Path temporary = Files.createTempFile(target.getParent(), "latency", ".tmp");
+            try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(temporary, StandardCharsets.UTF_8))) {
+                LatencyStages.writeCsv(engine.latency().snapshot(), writer);
+            }
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            synchronized (outputLock) {
+                out.println("[" + ChatClock.timestamp() + "] [ERROR] Could not write " + latencyCsv + ": " + e.getMessage());
+                out.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of latencies in nanoseconds, HDR style: values fall into
+ * log-linear buckets (32 per power of two, so about 3% precision from 1 ns
+ * up to centuries) held in one fixed array. Recording is lock-free and
+ * allocation-free from any number of threads; readers take a
+ * {@link Snapshot} and ask it for percentiles.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    /** Counts and extremes at one moment. */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long max;
+        private final double mean;
+
+        private Snapshot(long[] counts, long max) {
+            this.counts = counts;
+            this.max = max;
+            long total = 0;
+            double sum = 0;
+            for (int i = 0; i < counts.length; i++) {
+                total += counts[i];
+                sum += (double) counts[i] * midpoint(i);
+            }
+            this.count = total;
+            this.mean = total > 0 ? sum / total : 0;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        public double mean() {
+            return mean;
+        }
+
+        // The smallest bucket bound at or below which the given percentage of values fall; 0 when empty
+        public long percentile(double percent) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percent / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        // Values in buckets wholly at or below the bound, as in a Prometheus "le" bucket
+        public long countAtOrBelow(long nanos) {
+            if (nanos < 0) {
+                return 0;
+            }
+            int last = bucketOf(nanos);
+            long total = 0;
+            for (int i = 0; i < last; i++) {
+                total += counts[i];
+            }
+            return upperBound(last) <= nanos ? total + counts[last] : total;
+        }
+
+        // Values recorded since the previous snapshot of the same histogram
+        public Snapshot since(Snapshot previous) {
+            if (previous == null) {
+                return this;
+            }
+            long[] delta = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                delta[i] = counts[i] - previous.counts[i];
+            }
+            return new Snapshot(delta, max);
+        }
+    }
+
+    // Safe from any thread; negative values count as 0
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // another thread raised the maximum; compare again
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, max.get());
+    }
+
+    // Below 32 each value has its own bucket; above, 32 buckets per power of two
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BITS) - 1;
+        return (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BITS) - 1;
+        return lowerBound(bucket) + (1L << shift) - 1;
+    }
+
+    private static double midpoint(int bucket) {
+        return (lowerBound(bucket) + (double) upperBound(bucket)) / 2;
+    }
+}
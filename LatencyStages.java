@@ -0,0 +1,93 @@
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Where a message's time goes on its way through the server: one
+ * {@link LatencyHistogram} per stage and message type. Inbound stages are
+ * keyed by the kind of command the client sent, outbound stages by the type
+ * of frame written. Histograms are created the first time a type is seen;
+ * after that, recording is a map lookup and a histogram update, with no
+ * allocation.
+ */
+public class LatencyStages {
+
+    public enum Stage {
+        READ("read"),     // the line's bytes received -> the line decoded, including earlier lines of the same read
+        PARSE("parse"),   // Command.parse
+        FANOUT("fanout"), // frame built -> queued for every recipient (in NIO modes, one sample per event loop)
+        QUEUE("queue"),   // frame built -> the socket write carrying it starts
+        WRITE("write");   // one socket write, counted under the type of the first frame in it
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /** One stage and type's distribution at the moment of the snapshot. */
+    public static final class Entry {
+
+        public final Stage stage;
+        public final String type;
+        public final LatencyHistogram.Snapshot histogram;
+
+        private Entry(Stage stage, String type, LatencyHistogram.Snapshot histogram) {
+            this.stage = stage;
+            this.type = type;
+            this.histogram = histogram;
+        }
+    }
+
+    private final Map<Stage, Map<String, LatencyHistogram>> byStage = new EnumMap<>(Stage.class);
+
+    public LatencyStages() {
+        for (Stage stage : Stage.values()) {
+            byStage.put(stage, new ConcurrentHashMap<>());
+        }
+    }
+
+    // Safe from any thread
+    public void record(Stage stage, String type, long nanos) {
+        Map<String, LatencyHistogram> histograms = byStage.get(stage);
+        LatencyHistogram histogram = histograms.get(type);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(type, key -> new LatencyHistogram());
+        }
+        histogram.record(nanos);
+    }
+
+    // In stage order, then by type
+    public List<Entry> snapshot() {
+        List<Entry> entries = new ArrayList<>();
+        for (Stage stage : Stage.values()) {
+            for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(byStage.get(stage)).entrySet()) {
+                entries.add(new Entry(stage, entry.getKey(), entry.getValue().snapshot()));
+            }
+        }
+        return entries;
+    }
+
+    // stage,type,count,mean/p50/p90/p99/p999/max in microseconds; one line per entry after a header
+    public static void writeCsv(List<Entry> entries, PrintWriter out) {
+        out.println("stage,type,count,mean_us,p50_us,p90_us,p99_us,p999_us,max_us");
+        for (Entry entry : entries) {
+            LatencyHistogram.Snapshot h = entry.histogram;
+            out.println(String.format(Locale.ROOT, "%s,%s,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f", entry.stage, entry.type,
+                    h.count(), h.mean() / 1e3, h.percentile(50) / 1e3, h.percentile(90) / 1e3,
+                    h.percentile(99) / 1e3, h.percentile(99.9) / 1e3, h.max() / 1e3));
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,57 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Rows of the latency tab: one per stage and message type, with the
+ * percentiles in microseconds. Each refresh replaces the whole table from a
+ * fresh {@link LatencyStages} snapshot, formatted once rather than on every
+ * repaint; call on the EDT.
+ */
+public class LatencyTableModel extends AbstractTableModel {
+
+    private static final String[] COLUMNS = {"Stage", "Type", "Count", "p50 (µs)", "p99 (µs)", "Max (µs)"};
+
+    private List<Object[]> rows = List.of();
+
+    public void update(List<LatencyStages.Entry> snapshot) {
+        List<Object[]> updated = new ArrayList<>(snapshot.size());
+        for (LatencyStages.Entry entry : snapshot) {
+            LatencyHistogram.Snapshot histogram = entry.histogram;
+            updated.add(new Object[] {entry.stage.toString(), entry.type, histogram.count(),
+                micros(histogram.percentile(50)), micros(histogram.percentile(99)), micros(histogram.max())});
+        }
+        boolean sameRows = updated.size() == rows.size();
+        rows = updated;
+        if (sameRows && !rows.isEmpty()) {
+            fireTableRowsUpdated(0, rows.size() - 1); // keeps the selection
+        } else if (!sameRows) {
+            fireTableDataChanged();
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int column) {
+        return rows.get(rowIndex)[column];
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1e3);
+    }
+}
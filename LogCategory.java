@@ -0,0 +1,32 @@
+/**
+ * Kinds of server activity, in the order the log level slider enables them:
+ * level 1 shows errors only, each step up adds the next category, and level 5
+ * shows everything, including keep-alive and typing chatter. Callers check
+ * the level before building a line, so a category that is switched off costs
+ * one volatile read.
+ */
+public enum LogCategory {
+
+    ERROR(1),
+    CONNECTION(2), // connects, joins, renames, disconnects
+    PM(3),
+    CHAT(4), // chat lines and slash commands
+    HEARTBEAT(5); // PONGs, typing and presence requests
+
+    public static final int DEFAULT_LEVEL = CHAT.level;
+
+    public final int level;
+
+    LogCategory(int level) {
+        this.level = level;
+    }
+
+    // Category an inbound line is logged under, or null for lines that are logged where they are handled
+    public static LogCategory forCommand(Command.Kind kind) {
+        return switch (kind) {
+            case PONG, TYPING, PRESENCE -> HEARTBEAT;
+            case PRIVATE -> null; // sendPrivateMessage logs the delivered message
+            default -> CHAT;
+        };
+    }
+}
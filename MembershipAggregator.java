@@ -0,0 +1,127 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers joins, leaves and renames so a storm of them (say, everyone
+ * reconnecting after a Wi-Fi blip) is announced as one batch instead of one
+ * broadcast per client. A batch is ready once no change has arrived for the
+ * quiet period, or once its oldest change has waited for the whole window,
+ * whichever comes first: a lone join goes out after the quiet period, while a
+ * storm is cut into batches no more than one window apart.
+ *
+ * For the user list only the last change per name is kept. Clients apply the
+ * resulting adds and removes idempotently, so a snapshot taken while changes
+ * are pending still converges once the batch arrives.
+ */
+public class MembershipAggregator {
+
+    /** One window's worth of changes. Names appear in the order they were first seen. */
+    public static final class Batch {
+
+        public final List<String> joined = new ArrayList<>(); // to announce as JOIN
+        public final List<String> left = new ArrayList<>(); // to announce as LEAVE
+        public final List<String> added = new ArrayList<>(); // user list additions
+        public final List<String> removed = new ArrayList<>(); // user list removals
+    }
+
+    private final long quietNanos;
+    private final long windowNanos;
+    private final ScheduledExecutorService scheduler;
+    private final Runnable flushTask;
+    private final List<String> joined = new ArrayList<>();
+    private final List<String> left = new ArrayList<>();
+    private final Map<String, Boolean> listChanges = new LinkedHashMap<>(); // name -> added
+    private long firstChange; // nanoTime of the oldest pending change
+    private long lastChange;
+    private boolean flushScheduled;
+
+    /**
+     * flushTask runs on the scheduler when a batch may be ready; it is expected
+     * to call {@link #drain()} and publish what it returns.
+     */
+    public MembershipAggregator(long quietMillis, long windowMillis, ScheduledExecutorService scheduler,
+            Runnable flushTask) {
+        this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(quietMillis, windowMillis));
+        this.scheduler = scheduler;
+        this.flushTask = flushTask;
+    }
+
+    public synchronized void joined(String name) {
+        changing();
+        joined.add(name);
+        listChanges.put(name, Boolean.TRUE);
+    }
+
+    public synchronized void left(String name) {
+        changing();
+        left.add(name);
+        listChanges.put(name, Boolean.FALSE);
+    }
+
+    // A rename changes the user list but is announced separately, as NICK
+    public synchronized void renamed(String oldName, String newName) {
+        changing();
+        listChanges.put(oldName, Boolean.FALSE);
+        listChanges.put(newName, Boolean.TRUE);
+    }
+
+    // Call before recording a change
+    private void changing() {
+        long now = System.nanoTime();
+        if (isEmpty()) {
+            firstChange = now;
+        }
+        lastChange = now;
+        if (!flushScheduled) {
+            flushScheduled = true;
+            schedule(quietNanos);
+        }
+    }
+
+    private boolean isEmpty() {
+        return joined.isEmpty() && left.isEmpty() && listChanges.isEmpty();
+    }
+
+    private void schedule(long delayNanos) {
+        try {
+            scheduler.schedule(flushTask, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            flushScheduled = false; // shutting down; nothing left to announce to
+        }
+    }
+
+    /**
+     * Takes the pending batch if it is due, or returns null and reschedules the
+     * flush for when it will be.
+     */
+    public synchronized Batch drain() {
+        if (isEmpty()) {
+            flushScheduled = false;
+            return null;
+        }
+        long now = System.nanoTime();
+        long due = Math.min(lastChange + quietNanos, firstChange + windowNanos);
+        if (now - due < 0) {
+            schedule(due - now);
+            return null;
+        }
+        flushScheduled = false;
+
+        Batch batch = new Batch();
+        batch.joined.addAll(joined);
+        batch.left.addAll(left);
+        for (Map.Entry<String, Boolean> change : listChanges.entrySet()) {
+            (change.getValue() ? batch.added : batch.removed).add(change.getKey());
+        }
+        joined.clear();
+        left.clear();
+        listChanges.clear();
+        return batch;
+    }
+}
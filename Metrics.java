@@ -0,0 +1,114 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Server-wide counters, rate meters and gauges. Counters and meters are
+ * striped (LongAdder), so network threads update them in O(1) without
+ * contending on one cache line; only a reader pays for summing the stripes.
+ * Readers take a {@link Snapshot}, and rates are worked out between two
+ * snapshots, so any number of readers (dashboard, exporters) can each keep
+ * their own previous snapshot without disturbing one another.
+ *
+ * Metrics are registered up front, before the server starts, and looked up
+ * once; the hot path holds the returned object.
+ */
+public class Metrics {
+
+    /** A count that only goes up. */
+    public static class Counter {
+
+        private final LongAdder adder = new LongAdder();
+
+        public void increment() {
+            adder.increment();
+        }
+
+        public void add(long amount) {
+            adder.add(amount);
+        }
+
+        public long sum() {
+            return adder.sum();
+        }
+    }
+
+    /** A counter whose snapshots are also read as a per-second rate. */
+    public static class Meter extends Counter {
+
+        public void mark() {
+            increment();
+        }
+
+        public void mark(long amount) {
+            add(amount);
+        }
+    }
+
+    /** Values of every metric at one moment. */
+    public static final class Snapshot {
+
+        private final long nanoTime;
+        private final Map<String, Long> values;
+
+        private Snapshot(long nanoTime, Map<String, Long> values) {
+            this.nanoTime = nanoTime;
+            this.values = Collections.unmodifiableMap(values);
+        }
+
+        public long get(String name) {
+            Long value = values.get(name);
+            return value != null ? value : 0;
+        }
+
+        // Per second since previous; 0 without a previous snapshot
+        public double rate(String name, Snapshot previous) {
+            if (previous == null || nanoTime <= previous.nanoTime) {
+                return 0;
+            }
+            return (get(name) - previous.get(name)) * 1e9 / (nanoTime - previous.nanoTime);
+        }
+
+        // In registration order
+        public Map<String, Long> values() {
+            return values;
+        }
+    }
+
+    private final Map<String, Counter> counters = new LinkedHashMap<>();
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+    public synchronized Counter counter(String name) {
+        Counter counter = counters.computeIfAbsent(name, key -> new Counter());
+        if (counter instanceof Meter) {
+            throw new IllegalArgumentException(name + " is registered as a meter");
+        }
+        return counter;
+    }
+
+    public synchronized Meter meter(String name) {
+        Counter counter = counters.computeIfAbsent(name, key -> new Meter());
+        if (!(counter instanceof Meter)) {
+            throw new IllegalArgumentException(name + " is registered as a counter");
+        }
+        return (Meter) counter;
+    }
+
+    // A value read when a snapshot is taken, such as the number of connected clients
+    public synchronized void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public synchronized Snapshot snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+        return new Snapshot(System.nanoTime(), values);
+    }
+}
@@ -0,0 +1,201 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the engine's metrics over HTTP in the Prometheus text format, for
+ * scrapers. Each request is answered on the endpoint's own thread from a
+ * fresh {@link Metrics} snapshot, the session registry and the latency
+ * histograms, so the front end (Swing or headless) is never involved.
+ * Rates are left to the scraper: counters only go up.
+ */
+public class MetricsEndpoint {
+
+    public static final String PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // Histogram bucket bounds for the latency stages, in seconds
+    private static final double[] LATENCY_BUCKETS = {0.000001, 0.000005, 0.00001, 0.000025, 0.00005, 0.0001,
+        0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    // Engine metric name -> exported family, with its type and help text
+    private static final String[][] FAMILIES = {
+        {"connections_total", "chat_connections_total", "counter", "Connections accepted"},
+        {"heartbeat_timeouts", "chat_heartbeat_timeouts_total", "counter", "Clients dropped for not answering PING"},
+        {"slow_consumer_disconnects", "chat_slow_consumer_disconnects_total", "counter", "Clients dropped for a full outbound queue"},
+        {"private_message_failures", "chat_private_message_failures_total", "counter", "Private messages to a user who is not connected"},
+        {"bytes_in", "chat_received_bytes_total", "counter", "Bytes read from client sockets"},
+        {"bytes_out", "chat_sent_bytes_total", "counter", "Bytes written to client sockets"},
+        {"socket_writes", "chat_socket_writes_total", "counter", "Write calls issued to client sockets"},
+        {"frames_written", "chat_frames_written_total", "counter", "Protocol frames completed by those writes"},
+    };
+
+    private final ChatEngine engine;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private MetricsEndpoint(ChatEngine engine, HttpServer server, ExecutorService executor) {
+        this.engine = engine;
+        this.server = server;
+        this.executor = executor;
+    }
+
+    public static MetricsEndpoint start(ChatEngine engine, String host, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "chat-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        MetricsEndpoint endpoint = new MetricsEndpoint(engine, server, executor);
+        server.createContext(PATH, endpoint::handle);
+        server.setExecutor(executor);
+        server.start();
+        return endpoint;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    // The whole exposition, one family after another
+    String render() {
+        StringBuilder text = new StringBuilder(16 * 1024);
+        Metrics.Snapshot stats = engine.metrics().snapshot();
+
+        family(text, "chat_up", "gauge", "1 while the chat server is accepting connections");
+        sample(text, "chat_up", "", engine.isRunning() ? 1 : 0);
+        family(text, "chat_connected_clients", "gauge", "Sessions currently connected");
+        sample(text, "chat_connected_clients", "", stats.get("clients"));
+        for (String[] mapping : FAMILIES) {
+            family(text, mapping[1], mapping[2], mapping[3]);
+            sample(text, mapping[1], "", stats.get(mapping[0]));
+        }
+
+        family(text, "chat_messages_total", "counter", "Messages sent by clients, by type");
+        labelled(text, "chat_messages_total", "type", "messages.", stats);
+        family(text, "chat_commands_total", "counter", "Lines received from clients, by command kind");
+        labelled(text, "chat_commands_total", "kind", "commands.", stats);
+
+        queueDepths(text);
+        jvm(text);
+        latency(text);
+        return text.toString();
+    }
+
+    // One sample per engine metric under the prefix, labelled with the rest of its name
+    private static void labelled(StringBuilder text, String name, String labelName, String prefix, Metrics.Snapshot stats) {
+        for (Map.Entry<String, Long> entry : stats.values().entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                sample(text, name, label(labelName, entry.getKey().substring(prefix.length())), entry.getValue());
+            }
+        }
+    }
+
+    private void queueDepths(StringBuilder text) {
+        long total = 0;
+        long deepest = 0;
+        for (ChatEngine.SessionInfo session : engine.sessions()) {
+            total += session.queueDepth;
+            deepest = Math.max(deepest, session.queueDepth);
+        }
+        family(text, "chat_outbound_queued_frames", "gauge", "Frames waiting in client outbound queues, all sessions");
+        sample(text, "chat_outbound_queued_frames", "", total);
+        family(text, "chat_outbound_queue_max_frames", "gauge", "Frames waiting in the fullest client outbound queue");
+        sample(text, "chat_outbound_queue_max_frames", "", deepest);
+    }
+
+    private static void jvm(StringBuilder text) {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        family(text, "jvm_memory_heap_bytes", "gauge", "Heap memory, by area");
+        sample(text, "jvm_memory_heap_bytes", label("area", "used"), heap.getUsed());
+        sample(text, "jvm_memory_heap_bytes", label("area", "committed"), heap.getCommitted());
+        sample(text, "jvm_memory_heap_bytes", label("area", "max"), heap.getMax());
+
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        family(text, "jvm_gc_collections_total", "counter", "Garbage collections, by collector");
+        for (GarbageCollectorMXBean gc : collectors) {
+            sample(text, "jvm_gc_collections_total", label("gc", gc.getName()), Math.max(0, gc.getCollectionCount()));
+        }
+        family(text, "jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collection, by collector");
+        for (GarbageCollectorMXBean gc : collectors) {
+            sample(text, "jvm_gc_collection_seconds_total", label("gc", gc.getName()), Math.max(0, gc.getCollectionTime()) / 1e3);
+        }
+        family(text, "jvm_threads", "gauge", "Live threads");
+        sample(text, "jvm_threads", "", ManagementFactory.getThreadMXBean().getThreadCount());
+    }
+
+    // One histogram family for every stage and type; _sum is from bucket midpoints, within about 3%
+    private void latency(StringBuilder text) {
+        String name = "chat_stage_latency_seconds";
+        family(text, name, "histogram", "Time per stage of the message path, by message type (see LatencyStages)");
+        for (LatencyStages.Entry entry : engine.latency().snapshot()) {
+            LatencyHistogram.Snapshot histogram = entry.histogram;
+            String labels = label("stage", entry.stage.toString()) + "," + label("type", entry.type);
+            for (double bound : LATENCY_BUCKETS) {
+                long count = histogram.countAtOrBelow((long) (bound * 1e9));
+                sample(text, name + "_bucket", labels + "," + label("le", BigDecimal.valueOf(bound).stripTrailingZeros().toPlainString()), count);
+            }
+            sample(text, name + "_bucket", labels + "," + label("le", "+Inf"), histogram.count());
+            sample(text, name + "_sum", labels, histogram.mean() * histogram.count() / 1e9);
+            sample(text, name + "_count", labels, histogram.count());
+        }
+    }
+
+    private static void family(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, String labels, long value) {
+        text.append(name);
+        if (!labels.isEmpty()) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, String labels, double value) {
+        text.append(name);
+        if (!labels.isEmpty()) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ').append(value).append('\n');
+    }
+
+    private static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+}
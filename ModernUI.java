@@ -669,6 +669,58 @@ public class ModernUI {
         }
     }
 
+    // ==================== BOUNDED LOG AREA ====================
+    /**
+     * Read-only text area that keeps only the newest maxLines lines. Lines are
+     * appended in batches with one document insert, and old lines are cut in
+     * chunks of a tenth of the limit, so trimming costs O(1) per line amortized
+     * instead of re-reading the whole text.
+     */
+    public static class LogTextArea extends JTextArea {
+
+        private final int maxLines;
+        private final java.util.ArrayDeque<Integer> lineLengths = new java.util.ArrayDeque<>();
+
+        public LogTextArea(int maxLines) {
+            this.maxLines = maxLines;
+            setEditable(false);
+        }
+
+        // Appends each line followed by a newline; call on the EDT
+        public void appendLines(java.util.List<String> lines) {
+            if (lines.isEmpty()) {
+                return;
+            }
+            StringBuilder chunk = new StringBuilder();
+            for (String line : lines) {
+                chunk.append(line).append('\n');
+                lineLengths.addLast(line.length() + 1);
+            }
+            javax.swing.text.Document doc = getDocument();
+            try {
+                doc.insertString(doc.getLength(), chunk.toString(), null);
+                if (lineLengths.size() > maxLines + maxLines / 10) {
+                    int cut = 0;
+                    while (lineLengths.size() > maxLines) {
+                        cut += lineLengths.removeFirst();
+                    }
+                    doc.remove(0, cut);
+                }
+            } catch (javax.swing.text.BadLocationException e) {
+                // Only this class edits the document, so offsets are always in range
+            }
+        }
+
+        public void clearLines() {
+            lineLengths.clear();
+            setText("");
+        }
+
+        public void scrollToEnd() {
+            setCaretPosition(getDocument().getLength());
+        }
+    }
+
     // ==================== MODERN SCROLL BAR UI ====================
     public static class ModernScrollBarUI extends BasicScrollBarUI {
 
@@ -0,0 +1,275 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded per-client queue of frames waiting to be written. The limit is
+ * counted in messages or bytes; what happens when a client falls behind is
+ * decided by the overflow policy.
+ */
+public class OutboundQueue {
+
+    public enum LimitUnit {
+        MESSAGES("messages"),
+        KILOBYTES("KB");
+
+        private final String label;
+
+        LimitUnit(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    public enum OverflowPolicy {
+        DROP("Drop new messages"),
+        COALESCE("Coalesce state updates"),
+        DISCONNECT("Disconnect slow client");
+
+        private final String label;
+
+        OverflowPolicy(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    public enum Result {
+        QUEUED,
+        DROPPED,
+        // Over the limit under the DISCONNECT policy: the caller should evict the client
+        OVERFLOW
+    }
+
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LimitUnit unit;
+    private final long capacity; // in messages or bytes, depending on unit
+    private final OverflowPolicy policy;
+    private long queuedBytes;
+    private long droppedFrames;
+    private int headOffset; // bytes of the head frame a writer has already sent
+    private boolean binary; // frames offered from now on use the protocol v2 encoding
+    private volatile boolean epochTimes; // stamped frames carry epoch milliseconds
+
+    public OutboundQueue(int limit, LimitUnit unit, OverflowPolicy policy) {
+        this.unit = unit;
+        this.capacity = unit == LimitUnit.KILOBYTES ? limit * 1024L : limit;
+        this.policy = policy;
+    }
+
+    public Result offer(Frame frame) {
+        lock.lock();
+        try {
+            if (epochTimes) {
+                frame = frame.epoch();
+            }
+            if (binary) {
+                frame = frame.binary();
+            }
+            if (fits(frame)) {
+                add(frame);
+                return Result.QUEUED;
+            }
+            switch (policy) {
+                case DISCONNECT -> {
+                    return Result.OVERFLOW;
+                }
+                case COALESCE -> {
+                    if (supersede(frame.coalesceKey()) && fits(frame)) {
+                        add(frame);
+                        return Result.QUEUED;
+                    }
+                }
+                default -> {
+                }
+            }
+            droppedFrames++;
+            return Result.DROPPED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean fits(Frame frame) {
+        if (frames.isEmpty()) {
+            return true; // a single oversized frame must still be deliverable
+        }
+        return unit == LimitUnit.MESSAGES
+                ? frames.size() < capacity
+                : queuedBytes + frame.length() <= capacity;
+    }
+
+    private void add(Frame frame) {
+        frames.addLast(frame);
+        queuedBytes += frame.length();
+    }
+
+    // Removes the oldest queued frame with the same key. The head is never touched
+    // because a writer may be halfway through it.
+    private boolean supersede(String key) {
+        if (key == null) {
+            return false;
+        }
+        Iterator<Frame> it = frames.iterator();
+        if (it.hasNext()) {
+            it.next();
+        }
+        while (it.hasNext()) {
+            Frame queued = it.next();
+            if (key.equals(queued.coalesceKey())) {
+                it.remove();
+                queuedBytes -= queued.length();
+                droppedFrames++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queues the handshake reply, still in the text encoding, and switches every
+     * later frame to protocol v2. Both happen under the lock, so a concurrent
+     * broadcast lands entirely before or entirely after the switch.
+     */
+    public void switchToBinary(Frame reply) {
+        lock.lock();
+        try {
+            add(reply);
+            binary = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The client formats times itself: stamped frames offered from now on carry epoch milliseconds
+    public void useEpochTimes() {
+        epochTimes = true;
+    }
+
+    public Frame peek() {
+        lock.lock();
+        try {
+            return frames.peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Frame poll() {
+        lock.lock();
+        try {
+            Frame frame = frames.pollFirst();
+            if (frame != null) {
+                queuedBytes -= frame.length();
+            }
+            headOffset = 0;
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies up to maxFrames queued frames into dst, continuing the head frame
+     * where the last write stopped, until dst is full. Nothing is dequeued: the
+     * caller reports what the socket accepted through {@link #consume(int)}.
+     * Returns the first frame gathered, or null if the write resumes a partly
+     * sent frame or there was nothing to gather.
+     */
+    public Frame gather(ByteBuffer dst, int maxFrames) {
+        lock.lock();
+        try {
+            Frame first = headOffset == 0 ? frames.peekFirst() : null;
+            int offset = headOffset;
+            int gathered = 0;
+            for (Frame frame : frames) {
+                if (!dst.hasRemaining() || gathered == maxFrames) {
+                    break;
+                }
+                frame.copyTo(dst, offset);
+                offset = 0;
+                gathered++;
+            }
+            return first;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Dequeues the frames covered by a write of the given size; returns how many completed
+    public int consume(int written) {
+        lock.lock();
+        try {
+            int completed = 0;
+            long remaining = written;
+            Frame head;
+            while (remaining > 0 && (head = frames.peekFirst()) != null) {
+                int left = head.length() - headOffset;
+                if (remaining < left) {
+                    headOffset += (int) remaining;
+                    break;
+                }
+                remaining -= left;
+                frames.pollFirst();
+                queuedBytes -= head.length();
+                headOffset = 0;
+                completed++;
+            }
+            return completed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            frames.clear();
+            queuedBytes = 0;
+            headOffset = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long bytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long droppedFrames() {
+        lock.lock();
+        try {
+            return droppedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
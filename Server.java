@@ -1,36 +1,35 @@
 
 import java.awt.*;
 import java.awt.event.*;
-import java.io.*;
-import java.net.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
-import java.time.*;
-import java.time.format.*;
 import java.util.*;
-import java.util.concurrent.*;
+import java.util.List;
 import javax.swing.*;
 import javax.swing.border.*;
-import javax.swing.table.*;
 
 public class Server extends JFrame {
 
     private static final int PORT = 12345;
-    private ServerSocket serverSocket;
-    private boolean isRunning = false;
-    private final ExecutorService threadPool;
-    private final Map<String, ClientHandler> connectedClients;
-    private final Map<String, String> clientUsernames; // clientId -> username
-    private final Map<String, Long> clientConnectTimes; // clientId -> connect epoch
-    private final Map<String, Integer> clientRowIndex; // clientId -> row index in table
-    private final Map<String, Integer> clientMessageCounts; // clientId -> messages sent
+    private static final int ACTIVITY_FPS = 30; // UI frames per second that append activity
+    private static final int LOG_MAX_LINES = 10_000;
+    private static final int FEED_MAX_LINES = 1000;
+    private static final int CLIENT_TABLE_REFRESH_MS = 250;
+    private static final int CLIENT_HISTORY_ROWS = 1000; // disconnected sessions kept in the client table
+    private final ChatEngine engine;
 
     // UI Components
-    private JTextArea logArea;
+    private ModernUI.LogTextArea logArea;
 
     private JButton startButton, stopButton, clearLogButton, banUserButton;
     private JLabel statusLabel, portLabel, uptimeLabel, clientCountLabel, networkIPLabel;
     private JTable clientTable;
-    private DefaultTableModel clientTableModel;
+    private ClientTableModel clientTableModel;
+    private javax.swing.Timer clientTableTimer; // applies queued client table changes in batches
+    private LatencyTableModel latencyTableModel;
+    private JPanel latencyTab;
     private JProgressBar memoryBar;
     private JTabbedPane mainTabs;
     private JTextField broadcastField;
@@ -38,6 +37,16 @@ public class Server extends JFrame {
     private JSpinner portSpinner;
     private JToggleButton autoScrollToggle;
     private JSlider logLevelSlider;
+    private JComboBox<ServerConfig.ThreadModel> threadModelCombo;
+    private JSpinner ioLoopsSpinner;
+    private JSpinner queueLimitSpinner;
+    private JComboBox<OutboundQueue.LimitUnit> queueLimitUnitCombo;
+    private JComboBox<OutboundQueue.OverflowPolicy> overflowPolicyCombo;
+    private ModernUI.ModernToggleButton writeCoalescingToggle;
+    private JSpinner writeBatchDelaySpinner;
+    private JSpinner heartbeatSpinner;
+    private JSpinner metricsPortSpinner;
+    private JLabel writeStatsLabel;
 
     // Dashboard stat labels for real-time updates
     private JLabel dashboardClientCountLabel;
@@ -46,11 +55,10 @@ public class Server extends JFrame {
     private JLabel dashboardPortLabel;
     private JLabel dashboardMemoryLabel;
     private JLabel dashboardConnectionsLabel;
-    private JTextArea dashboardActivityFeed;
+    private ModernUI.LogTextArea dashboardActivityFeed;
 
     // Stats tracking
-    private long serverStartTime;
-    private int totalConnectionsEver = 0;
+    private Metrics.Snapshot lastStats; // the dashboard's previous snapshot, for rates
 
     // Modern Dark Theme Colors (from ModernUI.ThemeColors)
     private final Color primaryColor = ModernUI.ThemeColors.PRIMARY;
@@ -63,18 +71,41 @@ public class Server extends JFrame {
     private final Color textSecondary = ModernUI.ThemeColors.TEXT_SECONDARY;
     private final Color borderColor = ModernUI.ThemeColors.BORDER;
 
-    private DateTimeFormatter timeFormatter;
     private javax.swing.Timer uiUpdateTimer;
-    private ScheduledExecutorService heartbeatScheduler;
+    private javax.swing.Timer activityTimer; // moves activity lines from the engine's log to the text areas
 
     public Server() {
-        threadPool = Executors.newCachedThreadPool();
-        connectedClients = new ConcurrentHashMap<>();
-        clientUsernames = new ConcurrentHashMap<>();
-        clientConnectTimes = new ConcurrentHashMap<>();
-        clientRowIndex = new ConcurrentHashMap<>();
-        clientMessageCounts = new ConcurrentHashMap<>();
-        timeFormatter = DateTimeFormatter.ofPattern("HH:mm:ss");
+        // The dashboard is one subscriber; it reads everything else from the engine's registry and metrics
+        engine = new ChatEngine();
+        engine.addListener(new ChatEngine.Listener() {
+            @Override
+            public void started(ServerConfig config) {
+                SwingUtilities.invokeLater(() -> showRunning(config.port));
+            }
+
+            @Override
+            public void stopped() {
+                clientTableModel.allOffline();
+                SwingUtilities.invokeLater(Server.this::showStopped);
+            }
+
+            @Override
+            public void joined(String sessionId, String username) {
+                clientTableModel.connected(sessionId, username, sessionId.split(":")[0], ChatClock.timestamp());
+                synchronizeDashboard();
+            }
+
+            @Override
+            public void renamed(String sessionId, String username) {
+                clientTableModel.renamed(sessionId, username);
+            }
+
+            @Override
+            public void left(String sessionId) {
+                clientTableModel.disconnected(sessionId);
+                synchronizeDashboard();
+            }
+        });
 
         initializeGUI();
         startUIUpdateTimer();
@@ -106,39 +137,10 @@ public class Server extends JFrame {
         return new Font("SansSerif", style, size);
     }
 
-    private String getLocalIPAddress() {
-        try {
-            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-            while (interfaces.hasMoreElements()) {
-                NetworkInterface iface = interfaces.nextElement();
-                // Skip loopback and inactive interfaces
-                if (iface.isLoopback() || !iface.isUp()) {
-                    continue;
-                }
-
-                Enumeration<InetAddress> addresses = iface.getInetAddresses();
-                while (addresses.hasMoreElements()) {
-                    InetAddress addr = addresses.nextElement();
-                    // Get IPv4 address only
-                    if (addr instanceof Inet4Address) {
-                        String ip = addr.getHostAddress();
-                        // Skip localhost
-                        if (!ip.startsWith("127.")) {
-                            return ip;
-                        }
-                    }
-                }
-            }
-        } catch (Exception e) {
-            return "Unable to detect";
-        }
-        return "No network found";
-    }
-
     private void initializeGUI() {
         setTitle("🖥️ Advanced Chat Server - Control Panel");
         setUndecorated(false);
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE); // windowClosing exits once the engine has stopped
         setLayout(new BorderLayout());
 
         // Apply modern look and feel
@@ -162,366 +164,72 @@ public class Server extends JFrame {
         addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
-                if (isRunning) {
-                    stopServer();
-                }
+                setVisible(false);
                 if (uiUpdateTimer != null) {
                     uiUpdateTimer.stop();
                 }
-                System.exit(0);
-            }
-        });
-    }
-
-    private void startServer() {
-        if (isRunning) {
-            return;
-        }
-
-        int selectedPort = (Integer) portSpinner.getValue();
-
-        threadPool.execute(() -> {
-            try {
-                serverSocket = new ServerSocket(selectedPort);
-                isRunning = true;
-                serverStartTime = System.currentTimeMillis();
-
-                SwingUtilities.invokeLater(() -> {
-                    startButton.setEnabled(false);
-                    stopButton.setEnabled(true);
-                    broadcastButton.setEnabled(true);
-                    statusLabel.setText("🟢 Running");
-                    statusLabel.setForeground(successColor);
-                    portLabel.setText("🔌 Port: " + selectedPort);
-
-                    String localIP = getLocalIPAddress();
-                    if (networkIPLabel != null) {
-                        networkIPLabel.setText("🌐 " + localIP + ":" + selectedPort);
-                        networkIPLabel.setForeground(successColor);
-                    }
-
-                    String startMsg = "[" + LocalDateTime.now().format(timeFormatter) + "] [>] Server started on "
-                            + localIP + ":" + selectedPort;
-                    addActivity(startMsg);
-
-                    // Synchronize dashboard after server start
-                    synchronizeDashboard();
-                });
-
-                // Start heartbeat scheduler
-                startHeartbeat();
-
-                while (isRunning) {
-                    Socket clientSocket = serverSocket.accept();
-                    String clientId = clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
-                    totalConnectionsEver++;
-
-                    SwingUtilities.invokeLater(() -> {
-                        String connectMsg = "[" + LocalDateTime.now().format(timeFormatter)
-                                + "] [+] New client connected: " + clientId;
-                        addActivity(connectMsg);
-                    });
-
-                    ClientHandler handler = new ClientHandler(clientSocket, clientId);
-                    connectedClients.put(clientId, handler);
-                    clientConnectTimes.put(clientId, System.currentTimeMillis());
-                    threadPool.execute(handler);
+                if (activityTimer != null) {
+                    activityTimer.stop();
                 }
-            } catch (IOException e) {
-                if (isRunning) {
-                    SwingUtilities.invokeLater(() -> {
-                        String errorMsg = "[" + LocalDateTime.now().format(timeFormatter) + "] [ERROR] Server error: "
-                                + e.getMessage();
-                        addActivity(errorMsg);
-                    });
+                if (clientTableTimer != null) {
+                    clientTableTimer.stop();
                 }
+                // Clients get the shutdown notice before the process exits, without blocking the EDT
+                engine.stopInBackground().whenComplete((done, error) -> System.exit(0));
             }
         });
     }
 
-    public void stopServer() {
-        if (!isRunning) {
+    private void startServer() {
+        if (engine.isRunning()) {
             return;
         }
 
-        isRunning = false;
-        try {
-            if (serverSocket != null) {
-                serverSocket.close();
-            }
-
-            // Notify all clients about server shutdown
-            broadcastMessage("Server is shutting down...", "server", "SYSTEM");
-
-            for (ClientHandler handler : connectedClients.values()) {
-                handler.disconnect();
-            }
-            connectedClients.clear();
-            clientUsernames.clear();
-            clientConnectTimes.clear();
-            clientRowIndex.clear();
-            clientMessageCounts.clear();
-        } catch (IOException e) {
-            addActivity("Error stopping server: " + e.getMessage());
-        }
-
-        SwingUtilities.invokeLater(() -> {
-            startButton.setEnabled(true);
-            stopButton.setEnabled(false);
-            broadcastButton.setEnabled(false);
-            statusLabel.setText("⚫ Offline");
-            statusLabel.setForeground(textSecondary);
-            if (networkIPLabel != null) {
-                networkIPLabel.setText("🌐 Offline");
-                networkIPLabel.setForeground(textSecondary);
-            }
-            addActivity("[" + LocalDateTime.now().format(timeFormatter) + "] Server stopped");
-
-            // Synchronize dashboard after server stop
-            synchronizeDashboard();
-        });
-
-        stopHeartbeat();
-    }
-
-    private void broadcastMessage(String message, String senderId, String messageType) {
-        String timestamp = LocalDateTime.now().format(timeFormatter);
-        String formattedMessage;
-
-        switch (messageType) {
-            case "CHAT" -> {
-                String username = clientUsernames.getOrDefault(senderId, "Server");
-                formattedMessage = "CHAT|" + timestamp + "|" + username + "|" + message;
-            }
-            case "JOIN" ->
-                formattedMessage = "JOIN|" + timestamp + "|" + message;
-            case "LEAVE" ->
-                formattedMessage = "LEAVE|" + timestamp + "|" + message;
-            case "SYSTEM" ->
-                formattedMessage = "SYSTEM|" + timestamp + "|" + message;
-            case "TYPING" ->
-                formattedMessage = "TYPING|" + timestamp + "|" + message; // message carries
-            // username|true/false
-            default ->
-                formattedMessage = "CHAT|" + timestamp + "|Server|" + message;
-        }
-
-        // Send to all connected clients
-        for (ClientHandler handler : connectedClients.values()) {
-            handler.sendMessage(formattedMessage);
-        }
-    }
-
-    private void broadcastUserList() {
-        String userList = String.join(",", clientUsernames.values());
-        String message = "USERLIST|" + LocalDateTime.now().format(timeFormatter) + "|" + userList;
-
-        for (ClientHandler handler : connectedClients.values()) {
-            handler.sendMessage(message);
-        }
+        ServerConfig config = new ServerConfig();
+        config.port = (Integer) portSpinner.getValue();
+        config.threadModel = (ServerConfig.ThreadModel) threadModelCombo.getSelectedItem();
+        config.ioLoops = (Integer) ioLoopsSpinner.getValue();
+        config.queueLimit = (Integer) queueLimitSpinner.getValue();
+        config.queueLimitUnit = (OutboundQueue.LimitUnit) queueLimitUnitCombo.getSelectedItem();
+        config.overflowPolicy = (OutboundQueue.OverflowPolicy) overflowPolicyCombo.getSelectedItem();
+        config.coalesceWrites = writeCoalescingToggle.isOn();
+        config.writeBatchDelayMs = (Integer) writeBatchDelaySpinner.getValue();
+        config.heartbeatIntervalMs = (Integer) heartbeatSpinner.getValue() * 1000;
+        config.heartbeatTimeoutMs = config.heartbeatIntervalMs * 3;
+        config.metricsPort = (Integer) metricsPortSpinner.getValue();
+        engine.start(config);
     }
 
-    private void sendPrivateMessage(String toUsername, String fromClientId, String content) {
-        String timestamp = LocalDateTime.now().format(timeFormatter);
-        String fromUser = clientUsernames.getOrDefault(fromClientId, "Unknown");
-        ClientHandler toHandler = null;
-        String toClientId = null;
-        for (Map.Entry<String, String> e : clientUsernames.entrySet()) {
-            if (e.getValue().equalsIgnoreCase(toUsername)) {
-                toClientId = e.getKey();
-                break;
-            }
-        }
-        if (toClientId != null) {
-            toHandler = connectedClients.get(toClientId);
+    private void showRunning(int port) {
+        startButton.setEnabled(false);
+        stopButton.setEnabled(true);
+        broadcastButton.setEnabled(true);
+        statusLabel.setText("🟢 Running");
+        statusLabel.setForeground(successColor);
+        portLabel.setText("🔌 Port: " + port);
+
+        if (networkIPLabel != null) {
+            networkIPLabel.setText("🌐 " + ChatEngine.localAddress() + ":" + port);
+            networkIPLabel.setForeground(successColor);
         }
 
-        if (toHandler != null) {
-            String msg = "PRIVATE|" + timestamp + "|" + fromUser + "|" + toUsername + "|" + content;
-            toHandler.sendMessage(msg);
-            ClientHandler fromHandler = connectedClients.get(fromClientId);
-            if (fromHandler != null) {
-                fromHandler.sendMessage(msg); // echo to sender
-                incrementMessageCount(fromClientId);
-            }
-            SwingUtilities.invokeLater(() -> addActivity(
-                    "[" + timestamp + "] [PM] " + fromUser + " -> " + toUsername + ": " + content));
-        } else {
-            ClientHandler fromHandler = connectedClients.get(fromClientId);
-            if (fromHandler != null) {
-                fromHandler.sendMessage("SYSTEM|" + timestamp + "|User '" + toUsername + "' not found");
-            }
-        }
+        // Synchronize dashboard after server start
+        synchronizeDashboard();
     }
 
-    // Inner class to handle client connections
-    private class ClientHandler implements Runnable {
-
-        private final Socket socket;
-        private final String clientId;
-        private BufferedReader input;
-        private PrintWriter output;
-        private boolean isConnected = true;
-        private String username;
-        private long lastPongTime = System.currentTimeMillis();
-
-        public ClientHandler(Socket socket, String clientId) {
-            this.socket = socket;
-            this.clientId = clientId;
-            this.username = "User" + (connectedClients.size() + 1); // Default username
-        }
-
-        @Override
-        public void run() {
-            try {
-                input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-                output = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
-
-                // Wait for username from client (tolerate legacy clients)
-                String firstLine = input.readLine();
-                String pendingFirstChatMessage = null;
-                if (firstLine != null && firstLine.startsWith("USERNAME|")) {
-                    this.username = firstLine.substring(9).trim();
-                    if (this.username.isEmpty()) {
-                        this.username = "User" + (connectedClients.size() + 1);
-                    }
-                } else {
-                    // Legacy client: treat the first line as a chat message
-                    pendingFirstChatMessage = firstLine;
-                }
-
-                // Store username
-                clientUsernames.put(clientId, username);
-                clientMessageCounts.put(clientId, 0);
-
-                // Add to client table
-                SwingUtilities.invokeLater(() -> addClientToTable(clientId, username));
-
-                // Send welcome message and notify others
-                sendMessage("SYSTEM|" + LocalDateTime.now().format(timeFormatter) + "|Welcome to the chat, " + username
-                        + "!");
-                broadcastMessage(username + " joined the chat", clientId, "JOIN");
-                broadcastUserList();
-
-                SwingUtilities.invokeLater(() -> {
-                    addActivity("[" + LocalDateTime.now().format(timeFormatter) + "] " + username + " (" + clientId
-                            + ") joined");
-                    // Synchronize dashboard when client joins
-                    synchronizeDashboard();
-                });
-
-                // If the client didn't send USERNAME first, don't drop their first message
-                if (pendingFirstChatMessage != null && !pendingFirstChatMessage.trim().isEmpty()) {
-                    broadcastMessage(pendingFirstChatMessage, clientId, "CHAT");
-                    incrementMessageCount(clientId);
-                }
-
-                String message;
-                while (isConnected && (message = input.readLine()) != null) {
-                    final String finalMessage = message;
-                    SwingUtilities.invokeLater(() -> {
-                        addActivity("[" + LocalDateTime.now().format(timeFormatter) + "] [" + username + "]: "
-                                + finalMessage);
-                    });
-
-                    if (message.startsWith("PONG")) {
-                        lastPongTime = System.currentTimeMillis();
-                    } else if (message.startsWith("TYPING|")) {
-                        // Relay typing state to others: expected format TYPING|username|true/false
-                        String typingPayload = message.substring(7); // username|true
-                        broadcastMessage(typingPayload, clientId, "TYPING");
-                    } else if (message.startsWith("/w ") || message.startsWith("/pm ")) {
-                        // Private message: /w username message
-                        String[] parts = message.split(" ", 3);
-                        if (parts.length >= 3) {
-                            String toUser = parts[1];
-                            String content = parts[2];
-                            sendPrivateMessage(toUser, clientId, content);
-                        } else {
-                            sendMessage("SYSTEM|" + LocalDateTime.now().format(timeFormatter)
-                                    + "|Usage: /w <username> <message>");
-                        }
-                    } else if (message.equalsIgnoreCase("/help")) {
-                        sendMessage("SYSTEM|" + LocalDateTime.now().format(timeFormatter)
-                                + "|Available commands: /help, /list, /quit, /w <user> <msg>, /broadcast <msg>, /file <name>");
-                    } else if (message.startsWith("/broadcast ")) {
-                        String broadcastMsg = message.substring(11);
-                        broadcastMessage(broadcastMsg, clientId, "CHAT");
-                        incrementMessageCount(clientId);
-                    } else if (message.equalsIgnoreCase("/list")) {
-                        sendMessage("SYSTEM|" + LocalDateTime.now().format(timeFormatter) + "|Connected users: "
-                                + String.join(", ", clientUsernames.values()));
-                    } else if (message.equalsIgnoreCase("/quit")) {
-                        break;
-                    } else if (message.startsWith("/file ")) {
-                        // Handle file transfer
-                        broadcastMessage("sent a file: " + message.substring(6), clientId, "SYSTEM");
-                        incrementMessageCount(clientId);
-                    } else {
-                        // Regular chat message
-                        broadcastMessage(message, clientId, "CHAT");
-                        incrementMessageCount(clientId);
-                    }
-                }
-            } catch (IOException e) {
-                if (isConnected) {
-                    SwingUtilities.invokeLater(() -> {
-                        addActivity("[" + LocalDateTime.now().format(timeFormatter) + "] Client " + clientId
-                                + " error: " + e.getMessage());
-                    });
-                }
-            } finally {
-                disconnect();
-            }
-        }
-
-        public void sendMessage(String message) {
-            if (output != null) {
-                output.println(message);
-            }
+    private void showStopped() {
+        startButton.setEnabled(true);
+        stopButton.setEnabled(false);
+        broadcastButton.setEnabled(false);
+        statusLabel.setText("⚫ Offline");
+        statusLabel.setForeground(textSecondary);
+        if (networkIPLabel != null) {
+            networkIPLabel.setText("🌐 Offline");
+            networkIPLabel.setForeground(textSecondary);
         }
 
-        public void disconnect() {
-            if (!isConnected) {
-                return;
-            }
-
-            isConnected = false;
-            String leavingUsername = clientUsernames.get(clientId);
-            if (leavingUsername != null) {
-                broadcastMessage(leavingUsername + " left the chat", clientId, "LEAVE");
-            }
-
-            // Clean up
-            connectedClients.remove(clientId);
-            clientUsernames.remove(clientId);
-            clientConnectTimes.remove(clientId);
-            clientMessageCounts.remove(clientId);
-            clientRowIndex.remove(clientId);
-
-            // Update user list for remaining clients
-            broadcastUserList();
-
-            SwingUtilities.invokeLater(() -> {
-                updateClientRowOnDisconnect(clientId, leavingUsername);
-                // Synchronize dashboard when client disconnects
-                synchronizeDashboard();
-            });
-
-            try {
-                if (input != null) {
-                    input.close();
-                }
-                if (output != null) {
-                    output.close();
-                }
-                if (socket != null) {
-                    socket.close();
-                }
-            } catch (IOException e) {
-                // Ignore
-            }
-        }
+        // Synchronize dashboard after server stop
+        synchronizeDashboard();
     }
 
     private void createToolbar() {
@@ -656,11 +364,15 @@ public class Server extends JFrame {
 
         // Add action listeners
         startButton.addActionListener(e -> startServer());
-        stopButton.addActionListener(e -> stopServer());
+        stopButton.addActionListener(e -> {
+            // Draining client queues may take up to the shutdown deadline: keep it off the EDT
+            stopButton.setEnabled(false);
+            engine.stopInBackground();
+        });
         clearLogButton.addActionListener(e -> {
-            logArea.setText("");
+            logArea.clearLines();
             if (dashboardActivityFeed != null) {
-                dashboardActivityFeed.setText("");
+                dashboardActivityFeed.clearLines();
             }
         });
 
@@ -685,6 +397,15 @@ public class Server extends JFrame {
         // Client Management Tab
         mainTabs.addTab("  👥  Clients  ", createClientTab());
 
+        // Per-stage latency tab
+        latencyTab = createLatencyTab();
+        mainTabs.addTab("  ⏱️  Latency  ", latencyTab);
+        mainTabs.addChangeListener(e -> {
+            if (mainTabs.getSelectedComponent() == latencyTab) {
+                latencyTableModel.update(engine.latency().snapshot());
+            }
+        });
+
         // Broadcast Tab
         mainTabs.addTab("  📢  Broadcast  ", createBroadcastTab());
 
@@ -719,8 +440,9 @@ public class Server extends JFrame {
         activityPanel.setBorder(new CompoundBorder(
                 new ModernUI.ModernTitledBorder("🔴 Live Activity"),
                 new EmptyBorder(12, 12, 12, 12)));
-        dashboardActivityFeed = new JTextArea(15, 40);
-        dashboardActivityFeed.setEditable(false);
+        dashboardActivityFeed = new ModernUI.LogTextArea(FEED_MAX_LINES);
+        dashboardActivityFeed.setRows(15);
+        dashboardActivityFeed.setColumns(40);
         dashboardActivityFeed.setFont(ModernUI.getEmojiCompatibleFont(Font.PLAIN, 13));
         dashboardActivityFeed.setBackground(cardColor);
         dashboardActivityFeed.setForeground(textColor);
@@ -843,8 +565,7 @@ public class Server extends JFrame {
         logPanel.add(logControls, BorderLayout.NORTH);
 
         // Log area
-        logArea = new JTextArea();
-        logArea.setEditable(false);
+        logArea = new ModernUI.LogTextArea(LOG_MAX_LINES);
         logArea.setFont(ModernUI.getEmojiCompatibleFont(Font.PLAIN, 14));
         logArea.setBackground(cardColor);
         logArea.setForeground(textColor);
@@ -867,13 +588,7 @@ public class Server extends JFrame {
         clientPanel.setBorder(new EmptyBorder(16, 16, 16, 16));
 
         // Client table with ModernUI styling
-        String[] columns = {"Username", "IP Address", "Connect Time", "Status", "Messages Sent"};
-        clientTableModel = new DefaultTableModel(columns, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        clientTableModel = new ClientTableModel(CLIENT_HISTORY_ROWS, engine::messageCount, engine::queueDepth);
 
         clientTable = new JTable(clientTableModel);
         clientTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
@@ -908,6 +623,46 @@ public class Server extends JFrame {
         return clientPanel;
     }
 
+    private JPanel createLatencyTab() {
+        ModernUI.ModernPanel latencyPanel = new ModernUI.ModernPanel(backgroundColor);
+        latencyPanel.setLayout(new BorderLayout(0, 12));
+        latencyPanel.setBorder(new EmptyBorder(16, 16, 16, 16));
+
+        JLabel hintLabel = new JLabel("Time spent in each stage of a message's path, since the server was opened");
+        hintLabel.setFont(ModernUI.getEmojiCompatibleFont(Font.PLAIN, 13));
+        hintLabel.setForeground(textSecondary);
+        latencyPanel.add(hintLabel, BorderLayout.NORTH);
+
+        latencyTableModel = new LatencyTableModel();
+        JTable latencyTable = new JTable(latencyTableModel);
+        latencyPanel.add(ModernUI.TableStyler.createStyledScrollPane(latencyTable), BorderLayout.CENTER);
+
+        ModernUI.ModernPanel actionPanel = new ModernUI.ModernPanel(backgroundColor);
+        actionPanel.setLayout(new FlowLayout(FlowLayout.RIGHT, 12, 6));
+        actionPanel.setBorder(new EmptyBorder(6, 0, 0, 0));
+        JButton exportButton = new ModernUI.ModernButton("💾 Export CSV", primaryColor);
+        exportButton.setFont(ModernUI.getEmojiCompatibleFont(Font.BOLD, 13));
+        exportButton.addActionListener(e -> exportLatency());
+        actionPanel.add(exportButton);
+        latencyPanel.add(actionPanel, BorderLayout.SOUTH);
+
+        return latencyPanel;
+    }
+
+    private void exportLatency() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new File("latency.csv"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        try (PrintWriter out = new PrintWriter(chooser.getSelectedFile(), StandardCharsets.UTF_8)) {
+            LatencyStages.writeCsv(engine.latency().snapshot(), out);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Could not write " + chooser.getSelectedFile() + ": " + e.getMessage(),
+                    "Export failed", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
     private JPanel createBroadcastTab() {
         ModernUI.ModernPanel broadcastPanel = new ModernUI.ModernPanel(backgroundColor);
         broadcastPanel.setLayout(new BorderLayout(0, 16));
@@ -939,9 +694,7 @@ public class Server extends JFrame {
         broadcastButton.addActionListener(e -> {
             String msg = broadcastField.getText().trim();
             if (!msg.isEmpty()) {
-                broadcastMessage(msg, "server", "CHAT");
-                String ts = LocalDateTime.now().format(timeFormatter);
-                addActivity("[" + ts + "] [Broadcast]: " + msg);
+                engine.broadcast(msg);
                 broadcastField.setText("");
             }
         });
@@ -974,10 +727,12 @@ public class Server extends JFrame {
         logLevelLabel.setForeground(textColor);
         logLevelLabel.setBorder(new EmptyBorder(0, 0, 0, 6));
         logLevelCard.add(logLevelLabel);
-        logLevelSlider = new JSlider(1, 5, 3);
+        logLevelSlider = new JSlider(LogCategory.ERROR.level, LogCategory.HEARTBEAT.level, LogCategory.DEFAULT_LEVEL);
         logLevelSlider.setMajorTickSpacing(1);
         logLevelSlider.setPaintTicks(true);
         logLevelSlider.setPaintLabels(true);
+        logLevelSlider.setToolTipText("1 errors, 2 + connections, 3 + PMs, 4 + chat, 5 + heartbeats and typing");
+        logLevelSlider.addChangeListener(e -> engine.setLogLevel(logLevelSlider.getValue()));
         logLevelSlider.setBackground(cardColor);
         logLevelSlider.setForeground(textColor);
         logLevelSlider.setBorder(new EmptyBorder(4, 4, 0, 4));
@@ -1004,6 +759,82 @@ public class Server extends JFrame {
 
         settingsPanel.add(Box.createVerticalStrut(12));
 
+        // Thread model setting (applied on next start)
+        ModernUI.ModernCard threadModelCard = new ModernUI.ModernCard(cardColor, false);
+        threadModelCard.setLayout(new FlowLayout(FlowLayout.LEFT, 10, 6));
+        threadModelCard.setBorder(new EmptyBorder(12, 16, 12, 16));
+        threadModelCard.setMaximumSize(new Dimension(640, 60));
+        JLabel threadModelLabel = new JLabel("🧵 Thread Model:");
+        threadModelLabel.setFont(ModernUI.getEmojiCompatibleFont(Font.PLAIN, 13));
+        threadModelLabel.setForeground(textColor);
+        threadModelCard.add(threadModelLabel);
+        threadModelCombo = new JComboBox<>(ServerConfig.ThreadModel.values());
+        ModernUI.styleComboBox(threadModelCombo);
+        threadModelCombo.setToolTipText("Takes effect the next time the server is started");
+        threadModelCard.add(threadModelCombo);
+        JLabel ioLoopsLabel = new JLabel("Loops:");
+        ioLoopsLabel.setFont(ModernUI.getEmojiCompatibleFont(Font.PLAIN, 13));
+        ioLoopsLabel.setForeground(textColor);
+        threadModelCard.add(ioLoopsLabel);
+        ioLoopsSpinner = new ModernUI.ModernSpinner(new SpinnerNumberModel(
+                Runtime.getRuntime().availableProcessors(), 1, 256, 1));
+        ioLoopsSpinner.setPreferredSize(new Dimension(70, 32));
+        ioLoopsSpinner.setToolTipText("I/O event loops for the multi-reactor model (defaults to the core count)");
+        threadModelCard.add(ioLoopsSpinner);
+        threadModelCard.setAlignmentX(Component.LEFT_ALIGNMENT);
+        settingsPanel.add(threadModelCard);
+
+        settingsPanel.add(Box.createVerticalStrut(12));
+
+        // Outbound queue limit and slow-consumer policy (applied on next start)
+        ModernUI.ModernCard queueCard = new ModernUI.ModernCard(cardColor, false);
+        queueCard.setLayout(new FlowLayout(FlowLayout.LEFT, 10, 6));
+        queueCard.setBorder(new EmptyBorder(12, 16, 12, 16));
+        queueCard.setMaximumSize(new Dimension(640, 60));
+        JLabel queueLabel = new JLabel("📤 Outbound Queue:");
+        queueLabel.setFont(ModernUI.getEmojiCompatibleFont(Font.PLAIN, 13));
+        queueLabel.setForeground(textColor);
+        queueCard.add(queueLabel);
+        queueLimitSpinner = new ModernUI.ModernSpinner(new SpinnerNumberModel(1000, 1, 1_000_000, 100));
+        queueLimitSpinner.setPreferredSize(new Dimension(90, 32));
+        queueCard.add(queueLimitSpinner);
+        queueLimitUnitCombo = new JComboBox<>(OutboundQueue.LimitUnit.values());
+        ModernUI.styleComboBox(queueLimitUnitCombo);
+        queueCard.add(queueLimitUnitCombo);
+        overflowPolicyCombo = new JComboBox<>(OutboundQueue.OverflowPolicy.values());
+        overflowPolicyCombo.setSelectedItem(OutboundQueue.OverflowPolicy.COALESCE);
+        ModernUI.styleComboBox(overflowPolicyCombo);
+        overflowPolicyCombo.setToolTipText("What to do when a client falls behind");
+        queueCard.add(overflowPolicyCombo);
+        queueCard.setAlignmentX(Component.LEFT_ALIGNMENT);
+        settingsPanel.add(queueCard);
+
+        settingsPanel.add(Box.createVerticalStrut(12));
+
+        // Write coalescing (applied on next start)
+        ModernUI.ModernCard coalescingCard = new ModernUI.ModernCard(cardColor, false);
+        coalescingCard.setLayout(new FlowLayout(FlowLayout.LEFT, 10, 6));
+        coalescingCard.setBorder(new EmptyBorder(12, 16, 12, 16));
+        coalescingCard.setMaximumSize(new Dimension(640, 60));
+        JLabel coalescingLabel = new JLabel("✍️ Coalesce Writes:");
+        coalescingLabel.setFont(ModernUI.getEmojiCompatibleFont(Font.PLAIN, 13));
+        coalescingLabel.setForeground(textColor);
+        coalescingCard.add(coalescingLabel);
+        writeCoalescingToggle = new ModernUI.ModernToggleButton(true);
+        coalescingCard.add(writeCoalescingToggle);
+        JLabel batchDelayLabel = new JLabel("Max delay (ms):");
+        batchDelayLabel.setFont(ModernUI.getEmojiCompatibleFont(Font.PLAIN, 13));
+        batchDelayLabel.setForeground(textColor);
+        coalescingCard.add(batchDelayLabel);
+        writeBatchDelaySpinner = new ModernUI.ModernSpinner(new SpinnerNumberModel(0, 0, 50, 1));
+        writeBatchDelaySpinner.setPreferredSize(new Dimension(70, 32));
+        writeBatchDelaySpinner.setToolTipText("NIO modes: how long pending frames may wait for more before being flushed");
+        coalescingCard.add(writeBatchDelaySpinner);
+        coalescingCard.setAlignmentX(Component.LEFT_ALIGNMENT);
+        settingsPanel.add(coalescingCard);
+
+        settingsPanel.add(Box.createVerticalStrut(12));
+
         // Max clients setting
         ModernUI.ModernCard maxClientsCard = new ModernUI.ModernCard(cardColor, false);
         maxClientsCard.setLayout(new FlowLayout(FlowLayout.LEFT, 10, 6));
@@ -1030,12 +861,31 @@ public class Server extends JFrame {
         heartbeatLabel.setFont(ModernUI.getEmojiCompatibleFont(Font.PLAIN, 13));
         heartbeatLabel.setForeground(textColor);
         heartbeatCard.add(heartbeatLabel);
-        JSpinner heartbeatSpinner = new ModernUI.ModernSpinner(new SpinnerNumberModel(30, 5, 120, 5));
+        heartbeatSpinner = new ModernUI.ModernSpinner(new SpinnerNumberModel(30, 5, 120, 5));
         heartbeatSpinner.setPreferredSize(new Dimension(80, 32));
+        heartbeatSpinner.setToolTipText("Silent clients are pinged this often and dropped after three intervals (applied on next start)");
         heartbeatCard.add(heartbeatSpinner);
         heartbeatCard.setAlignmentX(Component.LEFT_ALIGNMENT);
         settingsPanel.add(heartbeatCard);
 
+        settingsPanel.add(Box.createVerticalStrut(12));
+
+        // Prometheus scrape endpoint
+        ModernUI.ModernCard metricsCard = new ModernUI.ModernCard(cardColor, false);
+        metricsCard.setLayout(new FlowLayout(FlowLayout.LEFT, 10, 6));
+        metricsCard.setBorder(new EmptyBorder(12, 16, 12, 16));
+        metricsCard.setMaximumSize(new Dimension(500, 60));
+        JLabel metricsLabel = new JLabel("📈 Metrics Port (0 = off):");
+        metricsLabel.setFont(ModernUI.getEmojiCompatibleFont(Font.PLAIN, 13));
+        metricsLabel.setForeground(textColor);
+        metricsCard.add(metricsLabel);
+        metricsPortSpinner = new ModernUI.ModernSpinner(new SpinnerNumberModel(0, 0, 65535, 1));
+        metricsPortSpinner.setPreferredSize(new Dimension(90, 32));
+        metricsPortSpinner.setToolTipText("Prometheus metrics at http://127.0.0.1:<port>/metrics while the server runs (applied on next start)");
+        metricsCard.add(metricsPortSpinner);
+        metricsCard.setAlignmentX(Component.LEFT_ALIGNMENT);
+        settingsPanel.add(metricsCard);
+
         settingsPanel.add(Box.createVerticalStrut(24));
 
         // Server info section
@@ -1070,7 +920,7 @@ public class Server extends JFrame {
         infoCard.add(osLabel);
         infoCard.add(Box.createVerticalStrut(6));
 
-        String localIP = getLocalIPAddress();
+        String localIP = ChatEngine.localAddress();
         JLabel ipLabel = new JLabel("🌐 Local IP: " + localIP);
         ipLabel.setFont(ModernUI.getEmojiCompatibleFont(Font.PLAIN, 12));
         ipLabel.setForeground(textSecondary);
@@ -1112,6 +962,12 @@ public class Server extends JFrame {
         JPanel rightStatus = new JPanel(new FlowLayout(FlowLayout.RIGHT));
         rightStatus.setOpaque(false);
 
+        writeStatsLabel = new JLabel("✍️ no writes yet");
+        writeStatsLabel.setForeground(textSecondary);
+        writeStatsLabel.setFont(statusFont);
+        writeStatsLabel.setToolTipText("Socket writes to clients: frames per write, bytes per write, write calls saved by coalescing");
+        rightStatus.add(writeStatsLabel);
+
         // Use ModernProgressBar for memory display
         ModernUI.ModernProgressBar modernMemoryBar = new ModernUI.ModernProgressBar(0, 100);
         modernMemoryBar.setPreferredSize(new Dimension(150, 12));
@@ -1134,6 +990,14 @@ public class Server extends JFrame {
     private void startUIUpdateTimer() {
         uiUpdateTimer = new javax.swing.Timer(1000, e -> updateUIStats());
         uiUpdateTimer.start();
+        activityTimer = new javax.swing.Timer(1000 / ACTIVITY_FPS, e -> drainActivity());
+        activityTimer.start();
+        clientTableTimer = new javax.swing.Timer(CLIENT_TABLE_REFRESH_MS, e -> {
+            if (clientTableModel.refresh()) {
+                updateClientCountLabel();
+            }
+        });
+        clientTableTimer.start();
     }
 
     private void updateUIStats() {
@@ -1141,8 +1005,8 @@ public class Server extends JFrame {
 
         // Handle uptime for both running and stopped states
         String uptimeStr = "00:00:00";
-        if (isRunning && serverStartTime > 0) {
-            long uptime = System.currentTimeMillis() - serverStartTime;
+        if (engine.isRunning()) {
+            long uptime = System.currentTimeMillis() - engine.startTime();
             long hours = uptime / (1000 * 60 * 60);
             long minutes = (uptime / (1000 * 60)) % 60;
             long seconds = (uptime / 1000) % 60;
@@ -1158,7 +1022,7 @@ public class Server extends JFrame {
         }
 
         // Update client count for both status bar and dashboard
-        int clientCount = connectedClients.size();
+        int clientCount = engine.clientCount();
         clientCountLabel.setText("👥 " + clientCount);
         if (dashboardClientCountLabel != null) {
             dashboardClientCountLabel.setText(String.valueOf(clientCount));
@@ -1177,27 +1041,50 @@ public class Server extends JFrame {
         // Dashboard shows memory in MB with percentage
         if (dashboardMemoryLabel != null) {
             dashboardMemoryLabel.setText(usedMemoryMB + " MB (" + memoryPercent + "%)");
+            // Rough heap cost per connection, for comparing thread models
+            dashboardMemoryLabel.setToolTipText(clientCount > 0
+                    ? "≈ " + (usedMemory / clientCount / 1024) + " KB heap per connection"
+                    : null);
         }
 
+        // One snapshot per tick; rates are per second since the previous one
+        Metrics.Snapshot stats = engine.metrics().snapshot();
+        Metrics.Snapshot previousStats = lastStats;
+        lastStats = stats;
+
         // Update dashboard total connections
         if (dashboardConnectionsLabel != null) {
-            dashboardConnectionsLabel.setText(String.valueOf(totalConnectionsEver));
+            dashboardConnectionsLabel.setText(String.valueOf(stats.get("connections_total")));
         }
 
         // Update dashboard port (show current selected port, not just when running)
         if (dashboardPortLabel != null) {
             int currentPort = (Integer) portSpinner.getValue();
-            String portStatus = isRunning ? currentPort + " (Active)" : currentPort + " (Stopped)";
+            String portStatus = engine.isRunning() ? currentPort + " (Active)" : currentPort + " (Stopped)";
             dashboardPortLabel.setText(portStatus);
         }
 
         // Update total messages count (ensure it's current)
         if (totalMessagesStatLabel != null) {
-            int totalMessages = 0;
-            for (int count : clientMessageCounts.values()) {
-                totalMessages += count;
-            }
-            totalMessagesStatLabel.setText(String.valueOf(totalMessages));
+            totalMessagesStatLabel.setText(String.valueOf(stats.get("messages")));
+            totalMessagesStatLabel.setToolTipText(String.format(
+                    "%.1f msg/s · %.1f PM/s · in %.1f KB/s · out %.1f KB/s",
+                    stats.rate("messages", previousStats), stats.rate("private_messages", previousStats),
+                    stats.rate("bytes_in", previousStats) / 1024, stats.rate("bytes_out", previousStats) / 1024));
+        }
+
+        // Write coalescing counters
+        long writes = stats.get("socket_writes");
+        if (writes > 0) {
+            long frames = stats.get("frames_written");
+            writeStatsLabel.setText(String.format("✍️ %.1f frames/write · %d B/write · %d writes saved",
+                    (double) frames / writes, stats.get("bytes_out") / writes, Math.max(0, frames - writes)));
+        }
+
+
+        // Latency percentiles, only while someone is looking at them
+        if (mainTabs.getSelectedComponent() == latencyTab) {
+            latencyTableModel.update(engine.latency().snapshot());
         }
 
         // Force repaint of dashboard elements to ensure visual updates
@@ -1208,17 +1095,17 @@ public class Server extends JFrame {
     private void refreshDashboardVisuals() {
         // Update stat card colors based on server status
         if (dashboardClientCountLabel != null) {
-            Color clientColor = isRunning ? new Color(88, 86, 214) : new Color(120, 120, 120);
+            Color clientColor = engine.isRunning() ? new Color(88, 86, 214) : new Color(120, 120, 120);
             dashboardClientCountLabel.setForeground(clientColor);
         }
 
         if (dashboardUptimeLabel != null) {
-            Color uptimeColor = isRunning ? new Color(255, 92, 88) : new Color(120, 120, 120);
+            Color uptimeColor = engine.isRunning() ? new Color(255, 92, 88) : new Color(120, 120, 120);
             dashboardUptimeLabel.setForeground(uptimeColor);
         }
 
         if (dashboardPortLabel != null) {
-            Color portColor = isRunning ? new Color(100, 180, 120) : new Color(200, 140, 60);
+            Color portColor = engine.isRunning() ? new Color(100, 180, 120) : new Color(200, 140, 60);
             dashboardPortLabel.setForeground(portColor);
         }
     }
@@ -1226,89 +1113,36 @@ public class Server extends JFrame {
     // Enhanced method to ensure dashboard is fully synchronized when server
     // starts/stops
     private void synchronizeDashboard() {
-        SwingUtilities.invokeLater(() -> {
-            updateUIStats();
-
-            // Ensure activity feed is synchronized
-            if (dashboardActivityFeed != null && logArea != null) {
-                String logContent = logArea.getText();
-                if (!dashboardActivityFeed.getText().equals(logContent)) {
-                    dashboardActivityFeed.setText(logContent);
-                    dashboardActivityFeed.setCaretPosition(dashboardActivityFeed.getDocument().getLength());
-                }
-            }
-        });
+        SwingUtilities.invokeLater(this::updateUIStats);
     }
 
-    // Method to add activity to both server log and dashboard activity feed
-    private void addActivity(String message) {
-        // Add to server log
-        logArea.append(message + "\n");
-        if (autoScrollToggle.isSelected()) {
-            logArea.setCaretPosition(logArea.getDocument().getLength());
+    // Runs on the EDT once per UI frame: one insert per text area for everything queued since
+    private void drainActivity() {
+        List<String> lines = new ArrayList<>();
+        ActivityLog activityLog = engine.activityLog();
+        activityLog.drain(lines::add, LOG_MAX_LINES);
+        long dropped = activityLog.takeDropped();
+        if (dropped > 0) {
+            lines.add("[" + ChatClock.timestamp() + "] [!] " + dropped + " activity lines dropped: the log fell behind");
         }
-
-        // Add to dashboard activity feed (synchronized)
-        if (dashboardActivityFeed != null) {
-            dashboardActivityFeed.append(message + "\n");
-            // Auto-scroll activity feed
-            dashboardActivityFeed.setCaretPosition(dashboardActivityFeed.getDocument().getLength());
-
-            // Keep activity feed to reasonable size (max 1000 lines)
-            String text = dashboardActivityFeed.getText();
-            String[] lines = text.split("\n");
-            if (lines.length > 1000) {
-                StringBuilder trimmed = new StringBuilder();
-                for (int i = lines.length - 1000; i < lines.length; i++) {
-                    trimmed.append(lines[i]).append("\n");
-                }
-                dashboardActivityFeed.setText(trimmed.toString());
-                dashboardActivityFeed.setCaretPosition(dashboardActivityFeed.getDocument().getLength());
-            }
-        }
-    }
-
-    private void addClientToTable(String clientId, String username) {
-        String ip = clientId.split(":")[0];
-        String connectTime = LocalDateTime.now().format(timeFormatter);
-        Object[] row = {username, ip, connectTime, "Online", 0};
-        int rowIndex = clientTableModel.getRowCount();
-        clientTableModel.addRow(row);
-        clientRowIndex.put(clientId, rowIndex);
-        updateClientCountLabel();
-    }
-
-    private void updateClientRowOnDisconnect(String clientId, String username) {
-        Integer row = clientRowIndex.get(clientId);
-        if (row != null && row >= 0 && row < clientTableModel.getRowCount()) {
-            clientTableModel.setValueAt("Offline", row, 3);
+        if (lines.isEmpty()) {
+            return;
         }
-        String ts = LocalDateTime.now().format(timeFormatter);
-        addActivity("[" + ts + "] " + (username != null ? username : clientId) + " disconnected");
-        updateClientCountLabel();
-    }
-
-    private void incrementMessageCount(String clientId) {
-        clientMessageCounts.merge(clientId, 1, Integer::sum);
-
-        // Update dashboard total messages immediately
-        if (totalMessagesStatLabel != null) {
-            int totalMessages = 0;
-            for (int count : clientMessageCounts.values()) {
-                totalMessages += count;
-            }
-            totalMessagesStatLabel.setText(String.valueOf(totalMessages));
+        logArea.appendLines(lines);
+        if (autoScrollToggle.isSelected()) {
+            logArea.scrollToEnd();
         }
-
-        // Update client table
-        Integer row = clientRowIndex.get(clientId);
-        if (row != null && row < clientTableModel.getRowCount()) {
-            clientTableModel.setValueAt(clientMessageCounts.get(clientId), row, 4);
+        if (dashboardActivityFeed != null) {
+            // The feed only shows its last FEED_MAX_LINES anyway
+            dashboardActivityFeed.appendLines(lines.size() > FEED_MAX_LINES
+                    ? lines.subList(lines.size() - FEED_MAX_LINES, lines.size())
+                    : lines);
+            dashboardActivityFeed.scrollToEnd();
         }
     }
 
     private void updateClientCountLabel() {
-        clientCountLabel.setText("👥 " + connectedClients.size());
+        clientCountLabel.setText("👥 " + engine.clientCount());
     }
 
     private void kickSelectedClient() {
@@ -1316,53 +1150,10 @@ public class Server extends JFrame {
         if (row < 0) {
             return;
         }
-        String username = (String) clientTableModel.getValueAt(row, 0);
-        String clientIdToKick = null;
-        for (Map.Entry<String, String> e : clientUsernames.entrySet()) {
-            if (e.getValue().equals(username)) {
-                clientIdToKick = e.getKey();
-                break;
-            }
-        }
-        if (clientIdToKick != null) {
-            ClientHandler handler = connectedClients.get(clientIdToKick);
-            if (handler != null) {
-                handler.sendMessage(
-                        "SYSTEM|" + LocalDateTime.now().format(timeFormatter) + "|You were disconnected by the server");
-                handler.disconnect();
-            }
-        }
-    }
-
-    private void startHeartbeat() {
-        stopHeartbeat();
-        heartbeatScheduler = Executors.newSingleThreadScheduledExecutor();
-        heartbeatScheduler.scheduleAtFixedRate(() -> {
-            try {
-                String ts = LocalDateTime.now().format(timeFormatter);
-                // Send PING
-                for (ClientHandler handler : connectedClients.values()) {
-                    handler.sendMessage("PING|" + ts);
-                }
-                // Check timeouts
-                long now = System.currentTimeMillis();
-                for (ClientHandler handler : new ArrayList<>(connectedClients.values())) {
-                    if (now - handler.lastPongTime > 90_000) { // 90s timeout
-                        SwingUtilities.invokeLater(() -> addActivity("[" + ts + "] No PONG from "
-                                + clientUsernames.get(handler.clientId) + ", disconnecting..."));
-                        handler.disconnect();
-                    }
-                }
-            } catch (Exception ignored) {
-            }
-        }, 10, 30, TimeUnit.SECONDS);
-    }
-
-    private void stopHeartbeat() {
-        if (heartbeatScheduler != null) {
-            heartbeatScheduler.shutdownNow();
-            heartbeatScheduler = null;
+        if (!clientTableModel.isOnline(row)) {
+            return; // history
         }
+        engine.kick(clientTableModel.sessionIdAt(row));
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,62 @@
+
+/**
+ * Settings snapshot taken when the server is started. The control panel fills
+ * one of these from its widgets so the networking code never has to read Swing
+ * components from its own threads.
+ */
+public class ServerConfig {
+
+    // How accepted connections are serviced
+    public enum ThreadModel {
+        THREAD_PER_CONNECTION("Thread per connection"),
+        VIRTUAL_THREAD_PER_CONNECTION("Virtual thread per connection"),
+        NIO_SELECTOR("NIO selector"),
+        MULTI_REACTOR("Multi-reactor (acceptor + N loops)");
+
+        private final String label;
+
+        ThreadModel(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    int port = 12345;
+    ThreadModel threadModel = ThreadModel.THREAD_PER_CONNECTION;
+    int ioLoops = Runtime.getRuntime().availableProcessors(); // event loops in multi-reactor mode
+
+    // Per-client outbound queue
+    int queueLimit = 1000;
+    OutboundQueue.LimitUnit queueLimitUnit = OutboundQueue.LimitUnit.MESSAGES;
+    OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.COALESCE;
+
+    // Gather all pending frames into one socket write; NIO loops may wait this long for more
+    boolean coalesceWrites = true;
+    int writeBatchDelayMs = 0;
+
+    // Clients silent this long get a PING; silent for the timeout, they are dropped
+    int heartbeatIntervalMs = 30_000;
+    int heartbeatTimeoutMs = 90_000;
+
+    // Joins and leaves are announced in batches: after this much quiet, or at most this long after the first
+    int membershipQuietMs = 20;
+    int membershipWindowMs = 100;
+
+    // Typing indicators: sets published per second, no typing in rooms larger than this,
+    // and how long a "true" lasts if the client never sends its "false"
+    int typingUpdatesPerSecond = 4;
+    int typingMaxRoomSize = 200;
+    int typingExpiryMs = 6000;
+
+    // How long stopping the server waits for queued messages (the shutdown notice included) to go out
+    int shutdownDrainMs = 2000;
+
+    // Prometheus text format at http://metricsHost:metricsPort/metrics while running; 0 for none.
+    // Loopback by default: bind a wider address only where the scraper needs it
+    int metricsPort = 0;
+    String metricsHost = "127.0.0.1";
+}
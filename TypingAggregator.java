@@ -0,0 +1,84 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Who is typing in the room, published at a fixed rate instead of relaying
+ * every TYPING toggle to everyone. Clients report state changes as they
+ * happen; once per tick the server takes the current set, if anything
+ * changed, and sends it as one TYPING_SET. Entries expire when a client never
+ * sends its "false" (it crashed or the line dropped), and in rooms above the
+ * size limit typing updates are dropped altogether.
+ */
+public class TypingAggregator {
+
+    /** What changed since the previous tick. */
+    public static final class Update {
+
+        public final List<String> typing = new ArrayList<>(); // everyone typing now, oldest first
+        public final Map<String, Boolean> changed = new LinkedHashMap<>(); // net change per user
+    }
+
+    private final int maxRoomSize;
+    private final long expiryMillis;
+    private final Map<String, Long> typing = new LinkedHashMap<>(); // username -> last "true", epoch ms
+    private final Map<String, Boolean> changed = new LinkedHashMap<>();
+
+    public TypingAggregator(int maxRoomSize, long expiryMillis) {
+        this.maxRoomSize = maxRoomSize;
+        this.expiryMillis = expiryMillis;
+    }
+
+    public synchronized void update(String username, boolean isTyping, int roomSize) {
+        if (roomSize > maxRoomSize) {
+            return;
+        }
+        if (isTyping) {
+            if (typing.put(username, System.currentTimeMillis()) == null) {
+                change(username, true);
+            }
+        } else if (typing.remove(username) != null) {
+            change(username, false);
+        }
+    }
+
+    // The user left or was renamed
+    public synchronized void remove(String username) {
+        if (typing.remove(username) != null) {
+            change(username, false);
+        }
+    }
+
+    // Toggling back within one tick cancels out
+    private void change(String username, boolean isTyping) {
+        Boolean previous = changed.remove(username);
+        if (previous == null) {
+            changed.put(username, isTyping);
+        }
+    }
+
+    /**
+     * Called once per tick. Returns the current set and the net changes, or null
+     * when nothing changed. A room that has grown past the limit is cleared.
+     */
+    public synchronized Update poll(int roomSize) {
+        long expired = System.currentTimeMillis() - expiryMillis;
+        boolean tooBig = roomSize > maxRoomSize;
+        typing.entrySet().removeIf(entry -> {
+            if (tooBig || entry.getValue() < expired) {
+                change(entry.getKey(), false);
+                return true;
+            }
+            return false;
+        });
+        if (changed.isEmpty()) {
+            return null;
+        }
+        Update update = new Update();
+        update.typing.addAll(typing.keySet());
+        update.changed.putAll(changed);
+        changed.clear();
+        return update;
+    }
+}
@@ -0,0 +1,349 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Microbenchmarks for the server's hot paths, run against an in-process
+ * ChatEngine with in-memory sessions, so no sockets or Swing are involved.
+ *
+ *   javac -d out *.java bench/*.java
+ *   java -cp out ChatBenchmarks [--json results.json] [--filter name] [--warmup 3] [--iterations 5] [--time-ms 1000]
+ *
+ * Each benchmark is warmed up, then measured for several fixed-length
+ * iterations; the score is the mean with a 99.9% confidence interval, as JMH
+ * reports it. --json writes the results in JMH's JSON result format, so
+ * runs from two commits can be compared with the usual JMH tooling.
+ */
+public class ChatBenchmarks {
+
+    /** One invocation of the code under test. */
+    private interface Op {
+        void run();
+    }
+
+    private static final class Result {
+
+        final String benchmark;
+        final Map<String, String> params;
+        final String mode; // "avgt" (ns/op) or "thrpt" (ops/s)
+        final double[] samples;
+        final int threads;
+
+        Result(String benchmark, Map<String, String> params, String mode, double[] samples, int threads) {
+            this.benchmark = benchmark;
+            this.params = params;
+            this.mode = mode;
+            this.samples = samples;
+            this.threads = threads;
+        }
+
+        double score() {
+            double sum = 0;
+            for (double sample : samples) {
+                sum += sample;
+            }
+            return sum / samples.length;
+        }
+
+        // Half-width of the 99.9% confidence interval, Student's t
+        double error() {
+            int n = samples.length;
+            if (n < 2) {
+                return Double.NaN;
+            }
+            double mean = score();
+            double squares = 0;
+            for (double sample : samples) {
+                squares += (sample - mean) * (sample - mean);
+            }
+            return T_999[Math.min(n - 1, T_999.length) - 1] * Math.sqrt(squares / (n - 1)) / Math.sqrt(n);
+        }
+
+        String unit() {
+            return mode.equals("avgt") ? "ns/op" : "ops/s";
+        }
+    }
+
+    // Two-sided 99.9% t values for 1..30 degrees of freedom; beyond that the last is close enough
+    private static final double[] T_999 = {636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59,
+        4.44, 4.32, 4.22, 4.14, 4.07, 4.01, 3.97, 3.92, 3.88, 3.85, 3.82, 3.79, 3.77, 3.75, 3.73, 3.71, 3.69,
+        3.67, 3.66, 3.65};
+
+    private static final int[] ROOM_SIZES = {10, 1_000, 10_000};
+
+    private int warmup = 3;
+    private int iterations = 5;
+    private long iterationNanos = 1_000_000_000L;
+    private String filter = "";
+    private final List<Result> results = new ArrayList<>();
+
+    // Frames delivered to in-memory sinks; read at the end so no delivery can be optimized away
+    private long delivered;
+
+    public static void main(String[] args) throws IOException {
+        ChatBenchmarks bench = new ChatBenchmarks();
+        String json = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--json" ->
+                    json = args[i + 1];
+                case "--filter" ->
+                    bench.filter = args[i + 1];
+                case "--warmup" ->
+                    bench.warmup = Integer.parseInt(args[i + 1]);
+                case "--iterations" ->
+                    bench.iterations = Integer.parseInt(args[i + 1]);
+                case "--time-ms" ->
+                    bench.iterationNanos = Long.parseLong(args[i + 1]) * 1_000_000L;
+                default ->
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+
+        bench.broadcastFanOut();
+        bench.commandParsing();
+        bench.privateMessageLookup();
+        bench.userListSnapshot();
+        bench.rename();
+        bench.activityUnderLoad();
+
+        System.out.printf(Locale.ROOT, "%n%-32s %-24s %5s %14s %12s  %s%n",
+                "Benchmark", "Params", "Mode", "Score", "Error", "Units");
+        for (Result result : bench.results) {
+            System.out.printf(Locale.ROOT, "%-32s %-24s %5s %14.1f %12.1f  %s%n", result.benchmark,
+                    result.params.toString(), result.mode, result.score(), result.error(), result.unit());
+        }
+        System.out.println("(" + bench.delivered + " frames delivered)");
+        if (json != null) {
+            try (OutputStream out = new FileOutputStream(json)) {
+                bench.writeJson(new PrintStream(out, true, StandardCharsets.UTF_8));
+            }
+            System.out.println("Results written to " + json);
+        }
+    }
+
+    // An engine whose room holds the given number of in-memory sessions, every one counting into delivered
+    private ChatEngine room(int size, String[] ids) {
+        ChatEngine engine = new ChatEngine();
+        engine.setLogLevel(LogCategory.ERROR.level); // activity has its own benchmark
+        for (int i = 0; i < size; i++) {
+            String id = engine.attachInMemory("user" + i, frame -> delivered++);
+            if (i < ids.length) {
+                ids[i] = id;
+            }
+        }
+        return engine;
+    }
+
+    // One client's chat line, broadcast to the whole room
+    private void broadcastFanOut() {
+        for (int size : ROOM_SIZES) {
+            String[] ids = new String[1];
+            ChatEngine engine = room(size, ids);
+            String sender = ids[0];
+            measure("broadcast.fanOut", Map.of("sinks", String.valueOf(size)), () -> engine.dispatch(sender, "hello everyone"));
+        }
+    }
+
+    // Command.parse for one representative line of each kind
+    private void commandParsing() {
+        Map<Command.Kind, String> lines = new LinkedHashMap<>();
+        lines.put(Command.Kind.CHAT, "hello everyone, how is it going?");
+        lines.put(Command.Kind.PONG, "PONG");
+        lines.put(Command.Kind.PRESENCE, "PRESENCE");
+        lines.put(Command.Kind.TYPING, "TYPING|alice|true");
+        lines.put(Command.Kind.PRIVATE, "/w bob are you there?");
+        lines.put(Command.Kind.NICK, "/nick alice2");
+        lines.put(Command.Kind.HELP, "/help");
+        lines.put(Command.Kind.LIST, "/list");
+        lines.put(Command.Kind.QUIT, "/quit");
+        lines.put(Command.Kind.BROADCAST, "/broadcast server maintenance at noon");
+        lines.put(Command.Kind.FILE, "/file notes.txt");
+        Command command = new Command();
+        for (Map.Entry<Command.Kind, String> entry : lines.entrySet()) {
+            String line = entry.getValue();
+            if (command.parse(line).kind() != entry.getKey()) {
+                throw new IllegalStateException(line + " parsed as " + command.kind());
+            }
+            measure("command.parse", Map.of("kind", entry.getKey().name()), () -> {
+                if (command.parse(line).kind() == null) {
+                    delivered++;
+                }
+            });
+        }
+    }
+
+    // /w to the last user to join: name lookup, delivery, and the echo to the sender
+    private void privateMessageLookup() {
+        for (int size : ROOM_SIZES) {
+            String[] ids = new String[1];
+            ChatEngine engine = room(size, ids);
+            String sender = ids[0];
+            String line = "/w user" + (size - 1) + " see you at noon";
+            measure("privateMessage.lookup", Map.of("sessions", String.valueOf(size)), () -> engine.dispatch(sender, line));
+        }
+    }
+
+    // A PRESENCE request: the full user list joined into one frame
+    private void userListSnapshot() {
+        for (int size : ROOM_SIZES) {
+            String[] ids = new String[1];
+            ChatEngine engine = room(size, ids);
+            String requester = ids[0];
+            measure("userList.snapshot", Map.of("users", String.valueOf(size)), () -> engine.dispatch(requester, "PRESENCE"));
+        }
+    }
+
+    // /nick back and forth between two free names: registry updates and the NICK frame to the whole room
+    private void rename() {
+        for (int size : ROOM_SIZES) {
+            String[] ids = new String[1];
+            ChatEngine engine = room(size, ids);
+            String renamer = ids[0];
+            String[] lines = {"/nick renamed", "/nick user0"};
+            int[] next = new int[1];
+            measure("nick.rename", Map.of("users", String.valueOf(size)), () -> engine.dispatch(renamer, lines[next[0]++ & 1]));
+        }
+    }
+
+    // Producers publishing activity lines while one consumer drains them, as the UI timer does
+    private void activityUnderLoad() {
+        for (int threads : new int[] {1, 4}) {
+            if (!selected("activity.publish")) {
+                return;
+            }
+            ActivityLog log = new ActivityLog(8192);
+            double[] samples = new double[iterations];
+            for (int i = -warmup; i < iterations; i++) {
+                double opsPerSecond = publishFor(log, threads, iterationNanos);
+                if (i >= 0) {
+                    samples[i] = opsPerSecond;
+                }
+            }
+            record(new Result("activity.publish", Map.of("threads", String.valueOf(threads)), "thrpt", samples, threads));
+        }
+    }
+
+    private double publishFor(ActivityLog log, int threads, long nanos) {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder published = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int producer = t;
+            Thread thread = new Thread(() -> {
+                long count = 0;
+                while (running.get()) {
+                    log.publish("[12:00:00] [user" + producer + "]: message " + count);
+                    count++;
+                }
+                published.add(count);
+                done.countDown();
+            });
+            thread.start();
+        }
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < nanos) {
+            log.drain(line -> delivered++, Integer.MAX_VALUE);
+            Thread.onSpinWait();
+        }
+        running.set(false);
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long elapsed = System.nanoTime() - start;
+        log.drain(line -> delivered++, Integer.MAX_VALUE);
+        log.takeDropped();
+        return published.sum() * 1e9 / elapsed;
+    }
+
+    private boolean selected(String benchmark) {
+        return benchmark.contains(filter);
+    }
+
+    // Average time per op over fixed-length iterations, after warmup iterations
+    private void measure(String benchmark, Map<String, String> params, Op op) {
+        if (!selected(benchmark)) {
+            return;
+        }
+        double[] samples = new double[iterations];
+        for (int i = -warmup; i < iterations; i++) {
+            long ops = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                // Check the clock once per batch so timing stays out of the measurement
+                for (int k = 0; k < 64; k++) {
+                    op.run();
+                }
+                ops += 64;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < iterationNanos);
+            if (i >= 0) {
+                samples[i] = (double) elapsed / ops;
+            }
+        }
+        record(new Result(benchmark, params, "avgt", samples, 1));
+    }
+
+    private void record(Result result) {
+        results.add(result);
+        System.out.printf(Locale.ROOT, "%s %s: %.1f +- %.1f %s%n", result.benchmark, result.params,
+                result.score(), result.error(), result.unit());
+    }
+
+    // The subset of JMH's -rf json format that comparison tools read
+    private void writeJson(PrintStream out) {
+        out.println("[");
+        for (int r = 0; r < results.size(); r++) {
+            Result result = results.get(r);
+            out.println("    {");
+            out.println("        \"jmhVersion\" : \"none (ChatBenchmarks)\",");
+            out.println("        \"benchmark\" : \"ChatBenchmarks." + result.benchmark + "\",");
+            out.println("        \"mode\" : \"" + result.mode + "\",");
+            out.println("        \"threads\" : " + result.threads + ",");
+            out.println("        \"forks\" : 1,");
+            out.println("        \"jvm\" : \"" + escape(System.getProperty("java.home")) + "\",");
+            out.println("        \"jdkVersion\" : \"" + escape(System.getProperty("java.version")) + "\",");
+            out.println("        \"warmupIterations\" : " + warmup + ",");
+            out.println("        \"measurementIterations\" : " + iterations + ",");
+            out.println("        \"measurementTime\" : \"" + iterationNanos / 1_000_000 + " ms\",");
+            out.println("        \"params\" : {");
+            int p = 0;
+            for (Map.Entry<String, String> param : result.params.entrySet()) {
+                out.println("            \"" + param.getKey() + "\" : \"" + escape(param.getValue()) + "\""
+                        + (++p < result.params.size() ? "," : ""));
+            }
+            out.println("        },");
+            out.println("        \"primaryMetric\" : {");
+            out.println(String.format(Locale.ROOT, "            \"score\" : %.3f,", result.score()));
+            out.println(String.format(Locale.ROOT, "            \"scoreError\" : %s,",
+                    Double.isNaN(result.error()) ? "\"NaN\"" : String.format(Locale.ROOT, "%.3f", result.error())));
+            out.println("            \"scoreUnit\" : \"" + result.unit() + "\",");
+            StringBuilder raw = new StringBuilder();
+            for (int i = 0; i < result.samples.length; i++) {
+                raw.append(i > 0 ? ", " : "").append(String.format(Locale.ROOT, "%.3f", result.samples[i]));
+            }
+            out.println("            \"rawData\" : [ [ " + raw + " ] ]");
+            out.println("        },");
+            out.println("        \"secondaryMetrics\" : {}");
+            out.println("    }" + (r + 1 < results.size() ? "," : ""));
+        }
+        out.println("]");
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
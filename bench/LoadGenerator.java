@@ -0,0 +1,621 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Puts realistic load on a running server without any Swing: opens N
+ * loopback connections, joins each with USERNAME|name, answers PING with
+ * PONG as AdvancedClient does, and then sends a mix of chat lines, /w private
+ * messages, TYPING toggles and reconnects at a target rate.
+ *
+ *   javac -d out *.java bench/*.java
+ *   java -cp out LoadGenerator --clients 1000 --rate 2000 --duration 30
+ *
+ * Every chat line and private message carries its send time, so each
+ * delivery back to a simulated client gives an end-to-end latency (send,
+ * server, socket, receive) on one clock. The report covers throughput,
+ * connection setup time (connect to welcome message) and delivery latency
+ * percentiles. A few event loops drive all the connections, so thousands of
+ * clients cost a handful of threads.
+ */
+public class LoadGenerator {
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java LoadGenerator [--option value]...",
+            "  --host 127.0.0.1          must be a loopback address",
+            "  --port 12345",
+            "  --clients 100             simultaneous connections",
+            "  --connect-rate 500        new connections per second while ramping up",
+            "  --rate 500                actions per second across all clients",
+            "  --mix chat=70,pm=20,typing=9,reconnect=1",
+            "  --message-bytes 64        approximate length of chat and private message text",
+            "  --duration 30             seconds of load after every client has joined",
+            "  --report 5                seconds between progress lines, 0 for none",
+            "  --io-threads N            event loops (default: min(4, processors))");
+
+    // Marks a line as ours and precedes its send time: "~lg <nanos> padding"
+    private static final String MARKER = "~lg ";
+    private static final byte[] MARKER_BYTES = MARKER.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHAT_PREFIX = "CHAT|".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PRIVATE_PREFIX = "PRIVATE|".getBytes(StandardCharsets.US_ASCII);
+    private static final int READ_BUFFER_BYTES = 16 * 1024;
+    private static final long DRAIN_NANOS = 2_000_000_000L; // after the run, wait this long for deliveries in flight
+
+    private enum Action {
+        CHAT, PM, TYPING, RECONNECT
+    }
+
+    // Settings
+    private String host = "127.0.0.1";
+    private int port = 12345;
+    private int clients = 100;
+    private int connectRate = 500;
+    private int rate = 500;
+    private final int[] weights = {70, 20, 9, 1}; // by Action ordinal
+    private int messageBytes = 64;
+    private int durationSeconds = 30;
+    private int reportSeconds = 5;
+    private int ioThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private InetSocketAddress address;
+    private String padding;
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Meter chatsSent = metrics.meter("chat_sent");
+    private final Metrics.Meter pmsSent = metrics.meter("pm_sent");
+    private final Metrics.Meter typingSent = metrics.meter("typing_sent");
+    private final Metrics.Meter reconnects = metrics.meter("reconnects");
+    private final Metrics.Meter chatsDelivered = metrics.meter("chat_delivered");
+    private final Metrics.Meter pmsDelivered = metrics.meter("pm_delivered");
+    private final Metrics.Meter bytesIn = metrics.meter("bytes_in");
+    private final Metrics.Meter bytesOut = metrics.meter("bytes_out");
+    private final Metrics.Counter pongs = metrics.counter("pongs");
+    private final Metrics.Counter connectFailures = metrics.counter("connect_failures");
+    private final Metrics.Counter dropped = metrics.counter("dropped_by_server");
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+    private final AtomicInteger joinedClients = new AtomicInteger();
+    private AtomicReferenceArray<String> names; // by client index; null while that client is not joined
+    private volatile boolean acting; // the measured phase: loops send actions
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parseArguments(args);
+        } catch (IllegalArgumentException e) { // NumberFormatException included
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        generator.run();
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--help") || arg.equals("-h")) {
+                throw new IllegalArgumentException("Load generator for the chat server.");
+            }
+            if (!arg.startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --option value, got: " + arg);
+            }
+            String value = args[++i];
+            switch (arg.substring(2)) {
+                case "host" ->
+                    host = value;
+                case "port" ->
+                    port = Integer.parseInt(value);
+                case "clients" ->
+                    clients = Integer.parseInt(value);
+                case "connect-rate" ->
+                    connectRate = Integer.parseInt(value);
+                case "rate" ->
+                    rate = Integer.parseInt(value);
+                case "mix" ->
+                    parseMix(value);
+                case "message-bytes" ->
+                    messageBytes = Integer.parseInt(value);
+                case "duration" ->
+                    durationSeconds = Integer.parseInt(value);
+                case "report" ->
+                    reportSeconds = Integer.parseInt(value);
+                case "io-threads" ->
+                    ioThreads = Integer.parseInt(value);
+                default ->
+                    throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        if (clients < 1 || connectRate < 1 || rate < 0 || ioThreads < 1 || durationSeconds < 1) {
+            throw new IllegalArgumentException("clients, connect-rate, io-threads and duration must be positive");
+        }
+    }
+
+    // name=weight pairs; actions left out get weight 0
+    private void parseMix(String value) {
+        Arrays.fill(weights, 0);
+        for (String part : value.split(",")) {
+            String[] pair = part.split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Expected name=weight in --mix, got: " + part);
+            }
+            weights[Action.valueOf(pair[0].trim().toUpperCase(Locale.ROOT)).ordinal()] = Integer.parseInt(pair[1].trim());
+        }
+    }
+
+    private void run() throws Exception {
+        InetAddress resolved = InetAddress.getByName(host);
+        if (!resolved.isLoopbackAddress()) {
+            System.err.println(host + " is not a loopback address; the load generator only targets this machine");
+            System.exit(2);
+        }
+        address = new InetSocketAddress(resolved, port);
+        padding = "x".repeat(Math.max(0, messageBytes - MARKER.length() - 20));
+        names = new AtomicReferenceArray<>(clients);
+
+        List<EventLoop> loops = new ArrayList<>();
+        for (int i = 0; i < ioThreads; i++) {
+            EventLoop loop = new EventLoop(i, (double) rate / ioThreads);
+            loops.add(loop);
+            loop.start();
+        }
+
+        // Ramp up at the connect rate, then wait for the stragglers to be welcomed
+        System.out.printf(Locale.ROOT, "Connecting %d clients to %s at %d/s...%n", clients, address, connectRate);
+        long rampStart = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            SimClient client = new SimClient(i, "lg" + i);
+            EventLoop loop = loops.get(i % loops.size());
+            client.loop = loop;
+            loop.execute(() -> loop.open(client));
+            long due = rampStart + (i + 1) * 1_000_000_000L / connectRate;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+        }
+        long joinDeadline = System.nanoTime() + 10_000_000_000L;
+        while (joinedClients.get() < clients && System.nanoTime() < joinDeadline) {
+            Thread.sleep(10);
+        }
+        double rampSeconds = (System.nanoTime() - rampStart) / 1e9;
+        System.out.printf(Locale.ROOT, "%d of %d clients joined in %.1f s (%d connect failures)%n",
+                joinedClients.get(), clients, rampSeconds, metrics.snapshot().get("connect_failures"));
+        if (joinedClients.get() == 0) {
+            System.err.println("No client could join; is the server running on " + address + "?");
+            System.exit(1);
+        }
+
+        // Measured phase
+        Metrics.Snapshot start = metrics.snapshot();
+        LatencyHistogram.Snapshot latencyStart = deliveryLatency.snapshot();
+        Metrics.Snapshot lastReport = start;
+        LatencyHistogram.Snapshot lastLatency = latencyStart;
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + durationSeconds * 1_000_000_000L;
+        acting = true;
+        long nextReport = startNanos + reportSeconds * 1_000_000_000L;
+        while (System.nanoTime() < endNanos) {
+            long wake = reportSeconds > 0 ? Math.min(nextReport, endNanos) : endNanos;
+            long wait = wake - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+            if (reportSeconds > 0 && System.nanoTime() >= nextReport) {
+                Metrics.Snapshot now = metrics.snapshot();
+                LatencyHistogram.Snapshot latency = deliveryLatency.snapshot();
+                printProgress((System.nanoTime() - startNanos) / 1e9, now, lastReport, latency.since(lastLatency));
+                lastReport = now;
+                lastLatency = latency;
+                nextReport += reportSeconds * 1_000_000_000L;
+            }
+        }
+        acting = false;
+        double measuredSeconds = (System.nanoTime() - startNanos) / 1e9;
+        Thread.sleep(DRAIN_NANOS / 1_000_000);
+
+        Metrics.Snapshot end = metrics.snapshot();
+        printSummary(measuredSeconds, start, end, deliveryLatency.snapshot().since(latencyStart));
+        running = false;
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+            loop.join(1000);
+        }
+    }
+
+    private void printProgress(double elapsed, Metrics.Snapshot now, Metrics.Snapshot previous, LatencyHistogram.Snapshot latency) {
+        System.out.printf(Locale.ROOT,
+                "[%5.1fs] joined=%d sent=%.0f/s delivered=%.0f/s in=%.1f KB/s latency p50=%s p99=%s p999=%s%n",
+                elapsed, joinedClients.get(),
+                now.rate("chat_sent", previous) + now.rate("pm_sent", previous) + now.rate("typing_sent", previous),
+                now.rate("chat_delivered", previous) + now.rate("pm_delivered", previous),
+                now.rate("bytes_in", previous) / 1024,
+                millis(latency.percentile(50)), millis(latency.percentile(99)), millis(latency.percentile(99.9)));
+    }
+
+    private void printSummary(double seconds, Metrics.Snapshot start, Metrics.Snapshot end, LatencyHistogram.Snapshot latency) {
+        LatencyHistogram.Snapshot connect = connectLatency.snapshot();
+        long chats = end.get("chat_sent") - start.get("chat_sent");
+        long pms = end.get("pm_sent") - start.get("pm_sent");
+        long typing = end.get("typing_sent") - start.get("typing_sent");
+        long chatDeliveries = end.get("chat_delivered") - start.get("chat_delivered");
+        long pmDeliveries = end.get("pm_delivered") - start.get("pm_delivered");
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Load: %d clients, %.1f s measured (%d actions/s target)%n", clients, seconds, rate);
+        System.out.printf(Locale.ROOT, "  sent        chat=%d pm=%d typing=%d reconnects=%d  (%.0f actions/s)%n",
+                chats, pms, typing, end.get("reconnects") - start.get("reconnects"), (chats + pms + typing) / seconds);
+        System.out.printf(Locale.ROOT, "  delivered   chat=%d (%.1f per line) pm=%d  (%.0f messages/s)%n",
+                chatDeliveries, chats > 0 ? (double) chatDeliveries / chats : 0, pmDeliveries,
+                (chatDeliveries + pmDeliveries) / seconds);
+        System.out.printf(Locale.ROOT, "  bytes       in=%.1f KB/s out=%.1f KB/s%n",
+                (end.get("bytes_in") - start.get("bytes_in")) / 1024.0 / seconds,
+                (end.get("bytes_out") - start.get("bytes_out")) / 1024.0 / seconds);
+        System.out.printf(Locale.ROOT, "  connection  setup p50=%s p99=%s p999=%s max=%s  (%d setups, %d failures)%n",
+                millis(connect.percentile(50)), millis(connect.percentile(99)), millis(connect.percentile(99.9)),
+                millis(connect.max()), connect.count(), end.get("connect_failures"));
+        System.out.printf(Locale.ROOT, "  delivery    latency p50=%s p99=%s p999=%s mean=%s  (%d samples)%n",
+                millis(latency.percentile(50)), millis(latency.percentile(99)), millis(latency.percentile(99.9)),
+                millis((long) latency.mean()), latency.count());
+        System.out.printf(Locale.ROOT, "  other       pongs=%d dropped by server=%d%n", end.get("pongs"), end.get("dropped_by_server"));
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2fms", nanos / 1e6);
+    }
+
+    private Action pickAction(ThreadLocalRandom random) {
+        int total = weights[0] + weights[1] + weights[2] + weights[3];
+        if (total == 0) {
+            return null;
+        }
+        int pick = random.nextInt(total);
+        for (Action action : Action.values()) {
+            pick -= weights[action.ordinal()];
+            if (pick < 0) {
+                return action;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * One selector thread and the clients assigned to it. It also paces its
+     * share of the actions, so sending needs no hand-off between threads.
+     */
+    private final class EventLoop extends Thread {
+
+        final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final List<SimClient> members = new ArrayList<>();
+        private final long actionIntervalNanos; // 0 when this loop sends nothing
+        private long nextAction;
+
+        EventLoop(int index, double actionsPerSecond) throws IOException {
+            super("load-loop-" + index);
+            setDaemon(true);
+            selector = Selector.open();
+            actionIntervalNanos = actionsPerSecond > 0 ? (long) (1e9 / actionsPerSecond) : 0;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(actionIntervalNanos > 0 && acting ? Math.max(1, (nextAction - System.nanoTime()) / 1_000_000) : 50);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        SimClient client = (SimClient) key.attachment();
+                        if (key.isValid()) {
+                            client.ready(key);
+                        }
+                    }
+                    if (acting && actionIntervalNanos > 0 && !members.isEmpty()) {
+                        sendDueActions();
+                    } else {
+                        nextAction = System.nanoTime();
+                    }
+                } catch (IOException e) {
+                    System.err.println(getName() + ": " + e.getMessage());
+                }
+            }
+            for (SimClient client : members) {
+                client.close();
+            }
+        }
+
+        // Open loop: actions fall due on a fixed schedule whether or not the server keeps up
+        private void sendDueActions() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long now = System.nanoTime();
+            while (nextAction <= now) {
+                nextAction += actionIntervalNanos;
+                SimClient client = members.get(random.nextInt(members.size()));
+                if (client.joined) {
+                    Action action = pickAction(random);
+                    if (action != null) {
+                        client.act(action, random);
+                    }
+                }
+            }
+        }
+
+        void open(SimClient client) {
+            members.add(client);
+            client.connect();
+        }
+    }
+
+    /** One simulated AdvancedClient, only ever touched by its loop's thread. */
+    private final class SimClient {
+
+        final int index;
+        final String requestedName;
+        EventLoop loop;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        private String name;
+        private byte[] nameBytes;
+        private long connectStarted;
+        private boolean joined;
+        private boolean typing;
+
+        SimClient(int index, String requestedName) {
+            this.index = index;
+            this.requestedName = requestedName;
+        }
+
+        void connect() {
+            joined = false;
+            typing = false;
+            name = requestedName;
+            nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            in.clear();
+            out.clear();
+            connectStarted = System.nanoTime();
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+                if (channel.connect(address)) {
+                    connected();
+                }
+            } catch (IOException e) {
+                connectFailures.increment();
+                close();
+            }
+        }
+
+        void ready(SelectionKey key) {
+            try {
+                if (key.isConnectable() && channel.finishConnect()) {
+                    connected();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush();
+                }
+            } catch (IOException e) {
+                if (joined) {
+                    dropped.increment();
+                } else {
+                    connectFailures.increment();
+                }
+                close();
+            }
+        }
+
+        private void connected() throws IOException {
+            key.interestOps(SelectionKey.OP_READ);
+            send("USERNAME|" + requestedName);
+        }
+
+        void act(Action action, ThreadLocalRandom random) {
+            switch (action) {
+                case CHAT -> {
+                    send(MARKER + System.nanoTime() + " " + padding);
+                    chatsSent.mark();
+                }
+                case PM -> {
+                    String to = names.get(random.nextInt(clients));
+                    if (to != null && !to.equals(name)) {
+                        send("/w " + to + " " + MARKER + System.nanoTime() + " " + padding);
+                        pmsSent.mark();
+                    }
+                }
+                case TYPING -> {
+                    typing = !typing;
+                    send("TYPING|" + name + "|" + typing);
+                    typingSent.mark();
+                }
+                case RECONNECT -> {
+                    reconnects.mark();
+                    close();
+                    connect();
+                }
+            }
+        }
+
+        private void send(String line) {
+            if (channel == null) {
+                return;
+            }
+            byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            out.add(ByteBuffer.wrap(bytes));
+            bytesOut.mark(bytes.length);
+            try {
+                flush();
+            } catch (IOException e) {
+                dropped.increment();
+                close();
+            }
+        }
+
+        private void flush() throws IOException {
+            while (!out.isEmpty()) {
+                ByteBuffer head = out.peek();
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                out.poll();
+            }
+            if (key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void read() throws IOException {
+            int count;
+            while ((count = channel.read(in)) > 0) {
+                bytesIn.mark(count);
+                in.flip();
+                byte[] buffer = in.array();
+                int lineStart = 0;
+                for (int i = 0; i < in.limit(); i++) {
+                    if (buffer[i] == '\n') {
+                        onLine(buffer, lineStart, i);
+                        lineStart = i + 1;
+                    }
+                }
+                in.position(lineStart);
+                in.compact();
+                if (!in.hasRemaining()) {
+                    // One line longer than the buffer, such as a big USERLIST
+                    ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+                    in.flip();
+                    bigger.put(in);
+                    in = bigger;
+                }
+                if (channel == null) {
+                    return; // the line closed us
+                }
+            }
+            if (count < 0) {
+                throw new IOException("server closed the connection");
+            }
+        }
+
+        // Chat and private messages are read in place; anything else is rare enough to decode
+        private void onLine(byte[] line, int start, int end) {
+            if (startsWith(line, start, end, CHAT_PREFIX)) {
+                // CHAT|ts|username|text
+                int text = afterField(line, start, end, 3);
+                recordLatency(line, text, end, chatsDelivered);
+                return;
+            }
+            if (startsWith(line, start, end, PRIVATE_PREFIX)) {
+                // PRIVATE|ts|from|to|text: the recipient's copy counts, not the sender's echo
+                int to = afterField(line, start, end, 3);
+                int text = afterField(line, start, end, 4);
+                if (to >= 0 && text >= 0 && text - 1 - to == nameBytes.length
+                        && Arrays.equals(line, to, text - 1, nameBytes, 0, nameBytes.length)) {
+                    recordLatency(line, text, end, pmsDelivered);
+                }
+                return;
+            }
+            String text = new String(line, start, end - start, StandardCharsets.UTF_8).trim();
+            String[] parts = text.split("\\|");
+            switch (parts[0]) {
+                case "PING" -> {
+                    send("PONG");
+                    pongs.increment();
+                }
+                case "NICK" -> {
+                    // NICK|ts|requested|assigned before the welcome: the server renamed us
+                    if (!joined && parts.length >= 4 && parts[2].equals(requestedName)) {
+                        name = parts[3];
+                        nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                    }
+                }
+                case "SYSTEM" -> {
+                    if (!joined && text.contains("Welcome to the chat")) {
+                        joined = true;
+                        connectLatency.record(System.nanoTime() - connectStarted);
+                        names.set(index, name);
+                        joinedClients.incrementAndGet();
+                    }
+                }
+                default -> {
+                    // USERLIST, TYPING, JOIN and the rest are only counted as bytes
+                }
+            }
+        }
+
+        private void recordLatency(byte[] line, int text, int end, Metrics.Meter delivered) {
+            if (text < 0 || !startsWith(line, text, end, MARKER_BYTES)) {
+                return; // someone else's chat
+            }
+            long sent = 0;
+            for (int i = text + MARKER_BYTES.length; i < end && line[i] >= '0' && line[i] <= '9'; i++) {
+                sent = sent * 10 + (line[i] - '0');
+            }
+            deliveryLatency.record(System.nanoTime() - sent);
+            delivered.mark();
+        }
+
+        void close() {
+            if (joined) {
+                joined = false;
+                names.compareAndSet(index, name, null);
+                joinedClients.decrementAndGet();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+                channel = null;
+            }
+        }
+    }
+
+    private static boolean startsWith(byte[] line, int start, int end, byte[] prefix) {
+        return end - start >= prefix.length && Arrays.equals(line, start, start + prefix.length, prefix, 0, prefix.length);
+    }
+
+    // Index just past the n-th '|' of the line, or -1 if it has fewer
+    private static int afterField(byte[] line, int start, int end, int n) {
+        int seen = 0;
+        for (int i = start; i < end; i++) {
+            if (line[i] == '|' && ++seen == n) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+}
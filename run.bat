@@ -20,6 +20,12 @@ if "%1"=="server" (
     goto end
 )
 
+if "%1"=="headless" (
+    echo Starting Headless Server...
+    java HeadlessServer %2 %3 %4 %5 %6 %7 %8 %9
+    goto end
+)
+
 if "%1"=="client" (
     echo Starting Advanced Client...
     java AdvancedClient
@@ -42,6 +48,7 @@ if "%1"=="clean" (
 echo Usage:
 echo   run.bat compile    - Compile all Java files
 echo   run.bat server     - Run the advanced GUI server
+echo   run.bat headless   - Run the server without a display (options: java HeadlessServer --help)
 echo   run.bat client     - Run the advanced GUI client
 echo   run.bat console    - Run the console client
 echo   run.bat clean      - Remove compiled class files
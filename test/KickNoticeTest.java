@@ -0,0 +1,128 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Kicks clients of a real ChatEngine in the blocking thread models and checks
+ * that each one still receives the SYSTEM notice before its socket closes:
+ * writes go through the asynchronous drain, so closing must not drop what is
+ * already queued.
+ *
+ *   javac -d out *.java test/*.java
+ *   java -cp out KickNoticeTest
+ *
+ * Exits with status 1 if any client missed the notice.
+ */
+public class KickNoticeTest {
+
+    private static final String NOTICE = "You were disconnected by the server";
+    private static final int CLIENTS = 10;
+    private static final int TIMEOUT_MS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        boolean passed = true;
+        for (ServerConfig.ThreadModel model : new ServerConfig.ThreadModel[] {
+            ServerConfig.ThreadModel.THREAD_PER_CONNECTION, ServerConfig.ThreadModel.VIRTUAL_THREAD_PER_CONNECTION}) {
+            int notified = run(model);
+            System.out.println(model + ": " + notified + " of " + CLIENTS + " kicked clients got the notice");
+            passed &= notified == CLIENTS;
+        }
+        System.out.println(passed ? "PASS" : "FAIL");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static int run(ServerConfig.ThreadModel model) throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.port = freePort();
+        config.threadModel = model;
+        ChatEngine engine = new ChatEngine();
+        engine.start(config);
+        List<Socket> clients = new ArrayList<>();
+        try {
+            awaitTrue(engine::isRunning, "server start");
+            for (int i = 0; i < CLIENTS; i++) {
+                Socket socket = connect(config.port);
+                socket.setSoTimeout(TIMEOUT_MS);
+                OutputStream out = socket.getOutputStream();
+                out.write(("USERNAME|kicked" + i + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                clients.add(socket);
+            }
+            awaitTrue(() -> engine.sessions().stream().filter(s -> s.username.startsWith("kicked")).count() == CLIENTS,
+                    "clients to join");
+
+            for (ChatEngine.SessionInfo session : engine.sessions()) {
+                engine.kick(session.id);
+            }
+            int notified = 0;
+            for (Socket socket : clients) {
+                if (readUntilClosed(socket).contains(NOTICE)) {
+                    notified++;
+                }
+            }
+            return notified;
+        } finally {
+            for (Socket socket : clients) {
+                socket.close();
+            }
+            engine.stop();
+        }
+    }
+
+    // Everything the server sent until it closed the connection (or the read timed out)
+    private static String readUntilClosed(Socket socket) {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try {
+            InputStream in = socket.getInputStream();
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                received.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            // A reset or timeout ends the read; whatever arrived before it counts
+        }
+        return received.toString(StandardCharsets.UTF_8);
+    }
+
+    // start() binds on a pooled thread, so the first attempts may be refused
+    private static Socket connect(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            try {
+                return new Socket("127.0.0.1", port);
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void awaitTrue(Condition condition, String what) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Timed out waiting for " + what);
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+}